@@ -0,0 +1,42 @@
+package ajacoby.netsketch;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Settings and reporting for the optional per-connection compression
+ * negotiated in the {@link Handshake}.
+ * <p>
+ * Stroke traffic is very repetitive (same source, color, and radius,
+ * nearby coordinates), so even the fastest Deflater level shrinks it a
+ * lot. Every flush uses SYNC_FLUSH so a frame never waits for more
+ * input before the peer can decode it.
+ */
+final class Compression {
+   /** Favour latency over ratio; strokes compress well even at level 1. */
+   static final int LEVEL = Deflater.BEST_SPEED;
+
+   private Compression() {}
+
+   static Deflater newDeflater() {
+      return new Deflater(LEVEL);
+   }
+
+   /**
+    * One-line summary of what compression bought and what it cost.
+    *
+    * @param rawBytes bytes before compression
+    * @param wireBytes bytes actually sent or received
+    * @param nanos time spent compressing, or -1 if not measured
+    */
+   static String report(String label, long rawBytes, long wireBytes, long nanos) {
+      double ratio = (wireBytes == 0) ? 0 : (double) rawBytes / wireBytes;
+      String msg = String.format(Locale.ROOT, "%s: %d bytes -> %d bytes (%.1fx)",
+            label, rawBytes, wireBytes, ratio);
+      if (nanos >= 0 && rawBytes > 0) {
+         double mbPerSec = rawBytes / 1e6 / (nanos / 1e9);
+         msg += String.format(Locale.ROOT, ", %.1f ms CPU, %.0f MB/s", nanos / 1e6, mbPerSec);
+      }
+      return msg;
+   }
+}
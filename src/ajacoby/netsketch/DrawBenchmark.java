@@ -0,0 +1,105 @@
+package ajacoby.netsketch;
+
+import ajacoby.stdlib.Draw;
+
+import java.awt.Color;
+import java.util.Random;
+
+/**
+ * Measures the Draw primitives NetSketch relies on: line, filledCircle,
+ * pen color/radius changes between strokes, and show(), at several
+ * canvas sizes with double buffering on and off.
+ * <p>
+ * Runs headless against Draw's offscreen image, so it works on a build
+ * machine without a display. Run with
+ * {@code java ajacoby.netsketch.DrawBenchmark [iterationMillis] [sizes...]}.
+ * With double buffering off every primitive also copies the whole
+ * canvas, so those rows mostly measure show().
+ */
+public class DrawBenchmark {
+   /** Pre-generated coordinates cycled through by every benchmark. */
+   private static final int POINTS = 4096;
+   private static final int[] DEFAULT_SIZES = {256, 512, 1024};
+
+   private final double[] xs = new double[POINTS];
+   private final double[] ys = new double[POINTS];
+   private final Color[] colors = new Color[16];
+
+   private DrawBenchmark() {
+      Random random = new Random(42);
+      // Short hops, like the segments of a stroke
+      double x = 0.5, y = 0.5;
+      for (int i = 0; i < POINTS; i++) {
+         x = Math.min(1, Math.max(0, x + (random.nextDouble() - 0.5) * 0.05));
+         y = Math.min(1, Math.max(0, y + (random.nextDouble() - 0.5) * 0.05));
+         xs[i] = x;
+         ys[i] = y;
+      }
+      for (int i = 0; i < colors.length; i++) {
+         colors[i] = new Color(random.nextInt(0x1000000));
+      }
+   }
+
+   private static Draw canvas(int size, boolean doubleBuffered) {
+      Draw draw = new Draw("DrawBenchmark");
+      draw.setCanvasSize(size, size);
+      draw.setPenRadius(0.005);
+      if (doubleBuffered) {
+         draw.enableDoubleBuffering();
+      }
+      return draw;
+   }
+
+   private void runAll(MicroBenchmark bench, int size, boolean doubleBuffered) throws Exception {
+      String suffix = String.format(" %d %s", size, doubleBuffered ? "buffered" : "unbuffered");
+      Draw draw = canvas(size, doubleBuffered);
+      int[] i = {0};
+      System.out.println(bench.run("line" + suffix, () -> {
+         int k = i[0]++ & (POINTS - 1);
+         int n = (k + 1) & (POINTS - 1);
+         draw.line(xs[k], ys[k], xs[n], ys[n]);
+         return k;
+      }, null));
+      System.out.println(bench.run("filledCircle" + suffix, () -> {
+         int k = i[0]++ & (POINTS - 1);
+         draw.filledCircle(xs[k], ys[k], 0.005);
+         return k;
+      }, null));
+      // What DrawEvent.draw does for every LINE from a different client.
+      System.out.println(bench.run("pen churn + line" + suffix, () -> {
+         int k = i[0]++ & (POINTS - 1);
+         int n = (k + 1) & (POINTS - 1);
+         draw.setPenColor(colors[k & (colors.length - 1)]);
+         draw.setPenRadius(0.002 + (k & 7) * 0.001);
+         draw.line(xs[k], ys[k], xs[n], ys[n]);
+         return k;
+      }, null));
+      if (doubleBuffered) { // the same operation either way
+         System.out.println(bench.run("show" + suffix, () -> {
+            draw.show();
+            return 0;
+         }, null));
+      }
+   } // runAll
+
+   public static void main(String[] args) throws Exception {
+      if (System.getProperty("java.awt.headless") == null) {
+         System.setProperty("java.awt.headless", "true");
+      }
+      long iterationMillis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+      int[] sizes = DEFAULT_SIZES;
+      if (args.length > 1) {
+         sizes = new int[args.length - 1];
+         for (int i = 1; i < args.length; i++) {
+            sizes[i - 1] = Integer.parseInt(args[i]);
+         }
+      }
+      DrawBenchmark benchmark = new DrawBenchmark();
+      MicroBenchmark bench = new MicroBenchmark(3, 5, iterationMillis);
+      System.out.println(MicroBenchmark.Result.header());
+      for (int size : sizes) {
+         benchmark.runAll(bench, size, true);
+         benchmark.runAll(bench, size, false);
+      }
+   }
+}
@@ -18,6 +18,10 @@ public class DrawEvent implements Serializable {
    private abstract class DrawEventPayload implements Serializable {
       private static final long serialVersionUID = 1;
       public abstract void draw(Draw win);
+      public Point2D getPoint1() { return null; }
+      public Point2D getPoint2() { return null; }
+      public Color getColor() { return null; }
+      public double getRadius() { return 0; }
    }
 
    private class PointPayload extends DrawEventPayload {
@@ -31,6 +35,10 @@ public class DrawEvent implements Serializable {
          this.radius = radius;
       }
 
+      @Override public Point2D getPoint1() { return pt; }
+      @Override public Color getColor() { return color; }
+      @Override public double getRadius() { return radius; }
+
       @Override
       public void draw(Draw win) {
          synchronized (win) {
@@ -53,6 +61,11 @@ public class DrawEvent implements Serializable {
          this.radius = radius;
       }
 
+      @Override public Point2D getPoint1() { return pt1; }
+      @Override public Point2D getPoint2() { return pt2; }
+      @Override public Color getColor() { return color; }
+      @Override public double getRadius() { return radius; }
+
       @Override
       public void draw(Draw win) {
          synchronized (win) {
@@ -77,6 +90,8 @@ public class DrawEvent implements Serializable {
    private String source;
    private DrawEventType type;
    private DrawEventPayload payload;
+   /** When the sending client created the event (epoch microseconds), or 0 if not stamped. */
+   private long timestamp;
 
    public DrawEvent(String source,
                     Point2D pt1, Point2D pt2,
@@ -109,6 +124,36 @@ public class DrawEvent implements Serializable {
       return type;
    }
 
+   /** Creation time in epoch microseconds, or 0 if the sender didn't stamp it. */
+   public long getTimestamp() {
+      return timestamp;
+   }
+
+   /** Stamps the event with its creation time, for end-to-end latency measurements. */
+   public void setTimestamp(long epochMicros) {
+      this.timestamp = epochMicros;
+   }
+
+   /** The point of a POINT event or the start of a LINE; null for CLEAR. */
+   public Point2D getPoint1() {
+      return payload.getPoint1();
+   }
+
+   /** The end of a LINE; null for other types. */
+   public Point2D getPoint2() {
+      return payload.getPoint2();
+   }
+
+   /** Pen color; null for CLEAR. */
+   public Color getColor() {
+      return payload.getColor();
+   }
+
+   /** Pen radius; 0 for CLEAR. */
+   public double getRadius() {
+      return payload.getRadius();
+   }
+
    @Override
    public String toString() {
       return "DrawEvent{" +
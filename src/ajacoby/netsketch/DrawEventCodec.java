@@ -0,0 +1,606 @@
+package ajacoby.netsketch;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+/**
+ * Compact binary wire format for DrawEvents.
+ * <p>
+ * A stream is a sequence of records, each {@code [varint length][type][body]}.
+ * Coordinates are quantized to 1/{@value #SCALE} of a canvas unit. Sources
+ * are announced once with a {@code SOURCE} record and then referred to by
+ * number. A LINE whose start is the previous LINE's end from the same
+ * source, with the same color and radius, is sent as a {@code LINE_TO}
+ * carrying only the zig-zag varint delta to the new end point - usually
+ * 6 or 7 bytes in total. Anything else starts a new stroke with absolute
+ * coordinates, color and radius.
+ * <p>
+ * An event stamped with a client timestamp is preceded by a
+ * {@code TIMESTAMP} record holding the epoch microseconds as a varint.
+ * <p>
+ * The server numbers every event on a board. It sends a {@code SEQ}
+ * record with the number of the next event when a client joins, and the
+ * decoder counts from there, so a client knows which events it has seen
+ * and can ask to resume after the last one.
+ * <p>
+ * Encoder and decoder are stateful and must see the same records in the
+ * same order. A CLEAR resets both sides, so a stream picked up right
+ * after a CLEAR (such as a new client's history replay) decodes fine.
+ * <p>
+ * A {@code RESET} record makes the decoder forget its state without an
+ * event. The server uses it to skip a lagging client straight to a CLEAR
+ * (see {@link #clearBarrier}), dropping the records queued before it.
+ * <p>
+ * A {@code CREDIT} record lets the other side send that many more
+ * events, on connections with flow control (see {@link FlowControl}).
+ * It changes no codec state, so it may be sent ahead of queued frames.
+ */
+final class DrawEventCodec {
+   /** Quantization steps per canvas unit (the canvas is 1 unit across). */
+   static final int SCALE = 1 << 16;
+
+   static final byte SOURCE = 1;
+   static final byte POINT = 2;
+   static final byte LINE = 3;
+   static final byte LINE_TO = 4;
+   static final byte CLEAR = 5;
+   static final byte TIMESTAMP = 6;
+   static final byte SEQ = 7;
+   static final byte RESET = 8;
+   static final byte CREDIT = 9;
+   /** Longest record a decoder accepts; anything longer is a broken or hostile stream. */
+   static final int MAX_RECORD_BYTES = 64 * 1024;
+
+   private DrawEventCodec() {}
+
+   static int quantize(double v) {
+      return (int) Math.round(v * SCALE);
+   }
+
+   static double unquantize(int q) {
+      return (double) q / SCALE;
+   }
+
+   /** A frame holding one SEQ record: the next event on the stream is number {@code next}. */
+   static Frame sequence(long next) {
+      Bytes record = new Bytes();
+      record.writeByte(SEQ);
+      record.writeVarLong(next);
+      Bytes frame = new Bytes();
+      frame.writeVarint(record.len);
+      frame.write(record);
+      return Frame.controlOf(frame.buf, frame.len);
+   }
+
+   /** A frame holding one CREDIT record: the other side may send {@code frames} more events. */
+   static Frame credit(long frames) {
+      Bytes record = new Bytes();
+      record.writeByte(CREDIT);
+      record.writeVarLong(frames);
+      Bytes frame = new Bytes();
+      frame.writeVarint(record.len);
+      frame.write(record);
+      return Frame.controlOf(frame.buf, frame.len);
+   }
+
+   /**
+    * A frame that decodes the same on any stream: it numbers the CLEAR,
+    * resets the decoder and encodes the CLEAR from scratch. It can stand
+    * in for the CLEAR and every frame not yet sent before it, since those
+    * would only be wiped.
+    *
+    * @param seq the CLEAR's sequence number on the board
+    */
+   static Frame clearBarrier(long seq, DrawEvent clear) {
+      Bytes record = new Bytes();
+      Bytes frame = new Bytes();
+      record.writeByte(SEQ);
+      record.writeVarLong(seq);
+      frame.writeVarint(record.len);
+      frame.write(record);
+      record.len = 0;
+      record.writeByte(RESET);
+      frame.writeVarint(record.len);
+      frame.write(record);
+      Encoder fresh = new Encoder();
+      fresh.encodeToFrame(clear);
+      frame.write(fresh.frame);
+      return Frame.copyOf(frame.buf, frame.len);
+   }
+
+   /** Per-source stroke state shared by the encoder and decoder logic. */
+   private static class Stroke {
+      final String source;
+      boolean hasLine = false;
+      int x, y;
+      int rgb;
+      double radius;
+
+      Stroke(String source) {
+         this.source = source;
+      }
+   }
+
+   /**
+    * Turns DrawEvents into records. One encoder per outgoing stream.
+    */
+   static class Encoder {
+      private final Map<String, Integer> sourceIds = new HashMap<>();
+      private final List<Stroke> strokes = new ArrayList<>();
+      private final Bytes record = new Bytes();
+      private final Bytes frame = new Bytes();
+
+      /** Encodes the event into a new frame holding one reference. */
+      Frame encode(DrawEvent de) {
+         encodeToFrame(de);
+         return Frame.copyOf(frame.buf, frame.len);
+      }
+
+      /**
+       * Encodes the event and writes it in a single call to {@code out}.
+       *
+       * @return number of bytes written
+       */
+      int write(DrawEvent de, OutputStream out) throws IOException {
+         encodeToFrame(de);
+         out.write(frame.buf, 0, frame.len);
+         return frame.len;
+      }
+
+      /** Forgets all sources and strokes; happens automatically after a CLEAR. */
+      void reset() {
+         sourceIds.clear();
+         strokes.clear();
+      }
+
+      private void encodeToFrame(DrawEvent de) {
+         frame.len = 0;
+         int id = sourceId(de.getSource());
+         Stroke stroke = strokes.get(id);
+         if (de.getTimestamp() != 0) {
+            record.len = 0;
+            record.writeByte(TIMESTAMP);
+            record.writeVarLong(de.getTimestamp());
+            frame.writeVarint(record.len);
+            frame.write(record);
+         }
+         record.len = 0;
+         switch (de.getType()) {
+            case POINT -> {
+               record.writeByte(POINT);
+               record.writeVarint(id);
+               record.writeInt(de.getColor().getRGB());
+               record.writeDouble(de.getRadius());
+               record.writeZigZag(quantize(de.getPoint1().getX()));
+               record.writeZigZag(quantize(de.getPoint1().getY()));
+            }
+            case LINE -> {
+               int x1 = quantize(de.getPoint1().getX());
+               int y1 = quantize(de.getPoint1().getY());
+               int x2 = quantize(de.getPoint2().getX());
+               int y2 = quantize(de.getPoint2().getY());
+               int rgb = de.getColor().getRGB();
+               if (stroke.hasLine && stroke.x == x1 && stroke.y == y1
+                     && stroke.rgb == rgb && stroke.radius == de.getRadius()) {
+                  record.writeByte(LINE_TO);
+                  record.writeVarint(id);
+                  record.writeZigZag(x2 - x1);
+                  record.writeZigZag(y2 - y1);
+               } else {
+                  record.writeByte(LINE);
+                  record.writeVarint(id);
+                  record.writeInt(rgb);
+                  record.writeDouble(de.getRadius());
+                  record.writeZigZag(x1);
+                  record.writeZigZag(y1);
+                  record.writeZigZag(x2 - x1);
+                  record.writeZigZag(y2 - y1);
+                  stroke.rgb = rgb;
+                  stroke.radius = de.getRadius();
+                  stroke.hasLine = true;
+               }
+               stroke.x = x2;
+               stroke.y = y2;
+            }
+            case CLEAR -> {
+               record.writeByte(CLEAR);
+               record.writeVarint(id);
+            }
+         }
+         frame.writeVarint(record.len);
+         frame.write(record);
+         if (de.getType() == DrawEvent.DrawEventType.CLEAR) {
+            reset();
+         }
+      } // encodeToFrame
+
+      /** Looks up the source, announcing it in the frame if it is new. */
+      private int sourceId(String source) {
+         Integer id = sourceIds.get(source);
+         if (id == null) {
+            id = strokes.size();
+            sourceIds.put(source, id);
+            strokes.add(new Stroke(source));
+            record.len = 0;
+            record.writeByte(SOURCE);
+            record.writeVarint(id);
+            record.writeString(source);
+            frame.writeVarint(record.len);
+            frame.write(record);
+         }
+         return id;
+      }
+   } // Encoder
+
+   /**
+    * Turns records back into DrawEvents. One decoder per incoming stream.
+    */
+   static class Decoder {
+      private final List<Stroke> strokes = new ArrayList<>();
+      /** Sources known as of the last event; later ones are undone by {@link #rollback}. */
+      private int committedSources = 0;
+      private byte[] body = new byte[64];
+      private int pos;
+      /** Length of the record in body; reads past it fail. */
+      private int limit;
+      /** From a TIMESTAMP record, for the event record that follows it. */
+      private long timestamp = 0;
+      /** Bytes consumed by the last successful read. */
+      private int lastBytes = 0;
+      /** Number of the next event, or -1 until a SEQ record says. */
+      private long nextSeq = -1;
+      private volatile long lastSeq = -1;
+      /** Told about each CREDIT record, on the reading thread. */
+      private LongConsumer creditListener = frames -> {};
+
+      /** Sets what to do with each CREDIT record read. */
+      void setCreditListener(LongConsumer listener) {
+         creditListener = listener;
+      }
+
+      /**
+       * Reads records until one yields a DrawEvent.
+       *
+       * @throws EOFException if the stream ends
+       */
+      DrawEvent read(DataInputStream in) throws IOException {
+         lastBytes = 0;
+         while (true) {
+            int len = checkLength(readVarint(in));
+            lastBytes += varintSize(len) + len;
+            if (len > body.length) {
+               body = new byte[Math.min(Math.max(len, body.length * 2), MAX_RECORD_BYTES)];
+            }
+            in.readFully(body, 0, len);
+            pos = 0;
+            limit = len;
+            DrawEvent de = decode(len);
+            if (de != null) return de;
+         }
+      }
+
+      /**
+       * Non-blocking variant of {@link #read(DataInputStream)} for buffers
+       * that may end part way through a record.
+       *
+       * @return the next event, or null if more bytes are needed; an
+       *         incomplete record is left in the buffer
+       */
+      DrawEvent read(ByteBuffer buf) throws IOException {
+         int first = buf.position();
+         while (true) {
+            int start = buf.position();
+            int len = readVarint(buf);
+            if (len < 0 || buf.remaining() < checkLength(len)) {
+               buf.position(start);
+               return null;
+            }
+            lastBytes = buf.position() + len - first;
+            if (len > body.length) {
+               body = new byte[Math.min(Math.max(len, body.length * 2), MAX_RECORD_BYTES)];
+            }
+            buf.get(body, 0, len);
+            pos = 0;
+            limit = len;
+            DrawEvent de = decode(len);
+            if (de != null) return de;
+         }
+      }
+
+      /**
+       * Bytes consumed by the last read that returned an event, including
+       * any SOURCE or TIMESTAMP records in front of it.
+       */
+      int lastBytes() {
+         return lastBytes;
+      }
+
+      /**
+       * Sequence number of the last event read, or -1 if the stream
+       * hasn't numbered its events.
+       */
+      long lastSeq() {
+         return lastSeq;
+      }
+
+      /** Forgets all sources and strokes; happens automatically after a CLEAR. */
+      void reset() {
+         strokes.clear();
+         committedSources = 0;
+      }
+
+      /**
+       * Undoes the records read since the last event, for a stream cut off
+       * part way through a frame: a resumed stream sends that frame again
+       * from its start.
+       */
+      void rollback() {
+         strokes.subList(committedSources, strokes.size()).clear();
+         timestamp = 0;
+      }
+
+      /** Forgets where the stream was, so the next connection asks for the whole history. */
+      void forgetSequence() {
+         nextSeq = -1;
+         lastSeq = -1;
+      }
+
+      private DrawEvent decode(int len) throws IOException {
+         byte type = nextByte();
+         if (type == TIMESTAMP) {
+            timestamp = nextVarLong();
+            return null;
+         }
+         if (type == SEQ) {
+            nextSeq = nextVarLong();
+            return null;
+         }
+         if (type == RESET) {
+            reset();
+            return null;
+         }
+         if (type == CREDIT) {
+            long frames = nextVarLong();
+            if (frames < 0) {
+               throw new IOException("Bad credit " + frames);
+            }
+            creditListener.accept(frames);
+            return null;
+         }
+         DrawEvent de = decodeEvent(type, len);
+         if (de != null) {
+            committedSources = strokes.size();
+            de.setTimestamp(timestamp);
+            timestamp = 0;
+            if (nextSeq >= 0) {
+               lastSeq = nextSeq++;
+            }
+         }
+         return de;
+      }
+
+      private DrawEvent decodeEvent(byte type, int len) throws IOException {
+         switch (type) {
+            case SOURCE -> {
+               int id = nextVarint();
+               String source = new String(body, pos, len - pos, StandardCharsets.UTF_8);
+               if (id != strokes.size()) {
+                  throw new IOException("Out of order source id " + id);
+               }
+               strokes.add(new Stroke(source));
+               return null;
+            }
+            case POINT -> {
+               Stroke stroke = stroke(nextVarint());
+               Color color = new Color(nextInt(), true);
+               double radius = nextDouble();
+               Point2D pt = new Point2D.Double(unquantize(nextZigZag()), unquantize(nextZigZag()));
+               return new DrawEvent(stroke.source, pt, null, color, radius,
+                     DrawEvent.DrawEventType.POINT);
+            }
+            case LINE, LINE_TO -> {
+               Stroke stroke = stroke(nextVarint());
+               if (type == LINE) {
+                  stroke.rgb = nextInt();
+                  stroke.radius = nextDouble();
+                  stroke.x = nextZigZag();
+                  stroke.y = nextZigZag();
+                  stroke.hasLine = true;
+               } else if (!stroke.hasLine) {
+                  throw new IOException("LINE_TO without a stroke from " + stroke.source);
+               }
+               Point2D pt1 = new Point2D.Double(unquantize(stroke.x), unquantize(stroke.y));
+               stroke.x += nextZigZag();
+               stroke.y += nextZigZag();
+               Point2D pt2 = new Point2D.Double(unquantize(stroke.x), unquantize(stroke.y));
+               return new DrawEvent(stroke.source, pt1, pt2, new Color(stroke.rgb, true),
+                     stroke.radius, DrawEvent.DrawEventType.LINE);
+            }
+            case CLEAR -> {
+               Stroke stroke = stroke(nextVarint());
+               reset();
+               return new DrawEvent(stroke.source, DrawEvent.DrawEventType.CLEAR);
+            }
+            default -> {
+               return null; // newer record type; the length prefix lets us skip it
+            }
+         }
+      } // decodeEvent
+
+      private Stroke stroke(int id) throws IOException {
+         if (id < 0 || id >= strokes.size()) {
+            throw new IOException("Unknown source id " + id);
+         }
+         return strokes.get(id);
+      }
+
+      private byte nextByte() throws IOException {
+         if (pos >= limit) {
+            throw new IOException("Record ends early");
+         }
+         return body[pos++];
+      }
+
+      private int nextVarint() throws IOException {
+         int value = 0;
+         for (int shift = 0; ; shift += 7) {
+            byte b = nextByte();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) return value;
+         }
+      }
+
+      private long nextVarLong() throws IOException {
+         long value = 0;
+         for (int shift = 0; ; shift += 7) {
+            byte b = nextByte();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+         }
+      }
+
+      private int nextZigZag() throws IOException {
+         int n = nextVarint();
+         return (n >>> 1) ^ -(n & 1);
+      }
+
+      private int nextInt() throws IOException {
+         if (pos + 4 > limit) {
+            throw new IOException("Record ends early");
+         }
+         int value = ((body[pos] & 0xFF) << 24) | ((body[pos + 1] & 0xFF) << 16)
+               | ((body[pos + 2] & 0xFF) << 8) | (body[pos + 3] & 0xFF);
+         pos += 4;
+         return value;
+      }
+
+      private double nextDouble() throws IOException {
+         long hi = nextInt() & 0xFFFFFFFFL;
+         long lo = nextInt() & 0xFFFFFFFFL;
+         return Double.longBitsToDouble((hi << 32) | lo);
+      }
+
+      private static int varintSize(int value) {
+         int size = 1;
+         while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+         }
+         return size;
+      }
+
+      /** Rejects a record length that is empty (no type) or over {@link #MAX_RECORD_BYTES}. */
+      private static int checkLength(int len) throws IOException {
+         if (len < 1 || len > MAX_RECORD_BYTES) {
+            throw new IOException("Bad record length " + len);
+         }
+         return len;
+      }
+
+      /** Returns -1 if the buffer ends before the varint does; a complete one is never negative. */
+      private static int readVarint(ByteBuffer buf) throws IOException {
+         int value = 0;
+         for (int shift = 0; shift < 32; shift += 7) {
+            if (!buf.hasRemaining()) return -1;
+            int b = buf.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+               if (value < 0) throw new IOException("Malformed varint");
+               return value;
+            }
+         }
+         throw new IOException("Malformed varint");
+      }
+
+      private static int readVarint(DataInputStream in) throws IOException {
+         int value = 0;
+         for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+               if (value < 0) throw new IOException("Malformed varint");
+               return value;
+            }
+         }
+         throw new IOException("Malformed varint");
+      }
+   } // Decoder
+
+   /** Minimal growable byte buffer for building records. */
+   private static class Bytes {
+      byte[] buf = new byte[64];
+      int len = 0;
+
+      void ensure(int extra) {
+         if (len + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+         }
+      }
+
+      void writeByte(int b) {
+         ensure(1);
+         buf[len++] = (byte) b;
+      }
+
+      void writeVarint(int value) {
+         ensure(5);
+         while ((value & ~0x7F) != 0) {
+            buf[len++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buf[len++] = (byte) value;
+      }
+
+      void writeVarLong(long value) {
+         ensure(10);
+         while ((value & ~0x7FL) != 0) {
+            buf[len++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+         }
+         buf[len++] = (byte) value;
+      }
+
+      void writeZigZag(int value) {
+         writeVarint((value << 1) ^ (value >> 31));
+      }
+
+      void writeInt(int value) {
+         ensure(4);
+         buf[len++] = (byte) (value >>> 24);
+         buf[len++] = (byte) (value >>> 16);
+         buf[len++] = (byte) (value >>> 8);
+         buf[len++] = (byte) value;
+      }
+
+      void writeDouble(double value) {
+         long bits = Double.doubleToLongBits(value);
+         writeInt((int) (bits >>> 32));
+         writeInt((int) bits);
+      }
+
+      void writeString(String s) {
+         byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+         ensure(bytes.length);
+         System.arraycopy(bytes, 0, buf, len, bytes.length);
+         len += bytes.length;
+      }
+
+      void write(Bytes other) {
+         ensure(other.len);
+         System.arraycopy(other.buf, 0, buf, len, other.len);
+         len += other.len;
+      }
+   } // Bytes
+}
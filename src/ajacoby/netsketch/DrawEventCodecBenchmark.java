@@ -0,0 +1,146 @@
+package ajacoby.netsketch;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Measures what it costs to put a DrawEvent on the wire and take it off
+ * again: Java serialization with {@code reset()} after every message (the
+ * original protocol) against {@link DrawEventCodec}.
+ * <p>
+ * Every operation is one round trip of one event through an in-memory
+ * loopback stream, so stream headers and class descriptors are paid the
+ * way a long-lived connection pays them. Run with
+ * {@code java ajacoby.netsketch.DrawEventCodecBenchmark [iterationMillis]}.
+ */
+public class DrawEventCodecBenchmark {
+   /** Distinct events cycled through, so nothing is a back-reference. */
+   private static final int EVENTS = 1024;
+
+   /**
+    * In-memory pipe: what is written can be read back. Each round trip
+    * drains it, so the buffer stays small.
+    */
+   private static class Loopback {
+      private byte[] buf = new byte[4096];
+      private int writePos = 0;
+      private int readPos = 0;
+      private long bytesWritten = 0;
+
+      final OutputStream out = new OutputStream() {
+         @Override
+         public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) {
+            if (writePos + len > buf.length) {
+               buf = Arrays.copyOf(buf, Math.max(buf.length * 2, writePos + len));
+            }
+            System.arraycopy(b, off, buf, writePos, len);
+            writePos += len;
+            bytesWritten += len;
+         }
+      };
+
+      final InputStream in = new InputStream() {
+         @Override
+         public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xFF;
+         }
+
+         @Override
+         public int read(byte[] b, int off, int len) throws IOException {
+            if (readPos == writePos) {
+               throw new IOException("read past what was written");
+            }
+            int n = Math.min(len, writePos - readPos);
+            System.arraycopy(buf, readPos, b, off, n);
+            readPos += n;
+            if (readPos == writePos) {
+               readPos = writePos = 0;
+            }
+            return n;
+         }
+
+         @Override
+         public int available() {
+            return writePos - readPos;
+         }
+      };
+
+      long getBytesWritten() {
+         return bytesWritten;
+      }
+   } // Loopback
+
+   /** Same source, color and radius throughout, like a real client. */
+   private static DrawEvent[] events(DrawEvent.DrawEventType type) {
+      DrawEvent[] events = new DrawEvent[EVENTS];
+      Color color = new Color(30, 144, 255);
+      Point2D prev = new Point2D.Double(0.5, 0.5);
+      for (int i = 0; i < EVENTS; i++) {
+         double angle = i * 0.05;
+         Point2D next = new Point2D.Double(0.5 + 0.3 * Math.cos(angle), 0.5 + 0.3 * Math.sin(angle));
+         events[i] = switch (type) {
+            case POINT -> new DrawEvent("Hobbes", next, null, color, 0.005, type);
+            case LINE -> new DrawEvent("Hobbes", prev, next, color, 0.005, type);
+            case CLEAR -> new DrawEvent("Hobbes", type);
+         };
+         prev = next;
+      }
+      return events;
+   }
+
+   /** Serialization as the original protocol used it: writeObject, reset, flush. */
+   private static MicroBenchmark.Result serialization(MicroBenchmark bench,
+                                                      DrawEvent.DrawEventType type) throws Exception {
+      DrawEvent[] events = events(type);
+      Loopback loopback = new Loopback();
+      ObjectOutputStream out = new ObjectOutputStream(loopback.out);
+      out.flush();
+      ObjectInputStream in = new ObjectInputStream(loopback.in);
+      int[] next = {0};
+      return bench.run("serialization+reset " + type, () -> {
+         out.writeObject(events[next[0]++ & (EVENTS - 1)]);
+         out.reset();
+         out.flush();
+         DrawEvent de = (DrawEvent) in.readObject();
+         return de.getType().ordinal();
+      }, loopback::getBytesWritten);
+   }
+
+   private static MicroBenchmark.Result codec(MicroBenchmark bench,
+                                              DrawEvent.DrawEventType type) throws Exception {
+      DrawEvent[] events = events(type);
+      Loopback loopback = new Loopback();
+      DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+      DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
+      DataInputStream in = new DataInputStream(loopback.in);
+      int[] next = {0};
+      return bench.run("codec " + type, () -> {
+         encoder.write(events[next[0]++ & (EVENTS - 1)], loopback.out);
+         DrawEvent de = decoder.read(in);
+         return de.getType().ordinal();
+      }, loopback::getBytesWritten);
+   }
+
+   public static void main(String[] args) throws Exception {
+      long iterationMillis = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+      MicroBenchmark bench = new MicroBenchmark(5, 5, iterationMillis);
+      System.out.println(MicroBenchmark.Result.header());
+      for (DrawEvent.DrawEventType type : DrawEvent.DrawEventType.values()) {
+         System.out.println(serialization(bench, type));
+         System.out.println(codec(bench, type));
+      }
+   }
+}
@@ -0,0 +1,206 @@
+package ajacoby.netsketch;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Lossy, latest-wins updates sent over UDP beside the TCP stream:
+ * cursor positions and previews of strokes still being drawn. Nothing
+ * here is ever committed to a board, so a lost or late datagram costs
+ * nothing, and one never waits behind the DrawEvents on the TCP stream.
+ * <p>
+ * A client datagram is {@code [long token][byte kind][long seq][body]};
+ * the token comes from the TCP handshake and tells the server who sent
+ * it. The server forwards it to the rest of the board as
+ * {@code [byte kind][long seq][long sender][short length][source][body]},
+ * where {@code sender} is {@link #senderId} of the token: unique like the
+ * token, unlike the name, without giving the token away. Each sender
+ * numbers its updates, and every receiver drops an update whose number
+ * isn't newer than the last one of that kind from that sender, so
+ * reordered datagrams never move a cursor backwards.
+ * <p>
+ * Cursors are not forwarded one by one: the server keeps each client's
+ * latest position and sends each board a PRESENCE update with all of
+ * them every {@link #PRESENCE_MILLIS}, so cursor traffic grows with the
+ * number of clients rather than with how much they move.
+ * <ul>
+ * <li>{@code HELLO}: no body; tells the server where to send, and keeps
+ *     NAT mappings open</li>
+ * <li>{@code CURSOR}: {@code [float x][float y]}</li>
+ * <li>{@code PREVIEW}: {@code [int rgb][float radius][short n]} and n
+ *     {@code [float x][float y]} points; n = 0 ends the preview</li>
+ * <li>{@code PRESENCE}: from the server only, with sender 0 and an
+ *     empty source; {@code [short n]} and n
+ *     {@code [long sender][short length][name][float x][float y]} cursors. A board with many clients gets several datagrams with the
+ *     same sequence number.</li>
+ * </ul>
+ */
+final class Ephemeral {
+   static final byte HELLO = 0;
+   static final byte CURSOR = 1;
+   static final byte PREVIEW = 2;
+   static final byte PRESENCE = 3;
+   /** Number of kinds, for per-kind sequence tracking. */
+   static final int KINDS = 4;
+   /** Keeps datagrams inside a typical MTU. */
+   static final int MAX_DATAGRAM = 1200;
+   /** Most points in a preview; older ones are left out. */
+   static final int MAX_PREVIEW_POINTS = 128;
+   /** How often a client says HELLO. */
+   static final long HELLO_MILLIS = 2000;
+   /** A sender not heard from for this long is forgotten. */
+   static final long EXPIRE_MILLIS = 5000;
+   /** How often the server sends each board the cursors that moved. */
+   static final long PRESENCE_MILLIS = 50;
+   /** How often the server repeats the cursors even if none moved, in case the last update was lost. */
+   static final long PRESENCE_REFRESH_MILLIS = 1000;
+
+   private Ephemeral() {}
+
+   /** One decoded update. */
+   static final class Update {
+      byte kind;
+      long seq;
+      long sender;
+      String source;
+      float x, y;
+      int rgb;
+      float radius;
+      float[] xs = new float[0];
+      float[] ys = new float[0];
+      /** Whose cursor each of xs and ys is, for PRESENCE. */
+      long[] senders = new long[0];
+      String[] names = new String[0];
+   }
+
+   /** Identifies the holder of a token to other clients; never 0. */
+   static long senderId(long token) {
+      try {
+         byte[] digest = MessageDigest.getInstance("SHA-256").digest(ByteBuffer.allocate(Long.BYTES).putLong(token).array());
+         return ByteBuffer.wrap(digest).getLong() | 1;
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e); // every JVM has SHA-256
+      }
+   }
+
+   static void writeClientHeader(ByteBuffer buf, long token, byte kind, long seq) {
+      buf.putLong(token).put(kind).putLong(seq);
+   }
+
+   static void writeCursor(ByteBuffer buf, double x, double y) {
+      buf.putFloat((float) x).putFloat((float) y);
+   }
+
+   /** Writes the last {@link #MAX_PREVIEW_POINTS} of the n points. */
+   static void writePreview(ByteBuffer buf, int rgb, double radius, double[] xs, double[] ys, int n) {
+      int first = Math.max(0, n - MAX_PREVIEW_POINTS);
+      buf.putInt(rgb).putFloat((float) radius).putShort((short) (n - first));
+      for (int i = first; i < n; i++) {
+         buf.putFloat((float) xs[i]).putFloat((float) ys[i]);
+      }
+   }
+
+   /**
+    * Adds one cursor to a PRESENCE body whose count was written as 0 at
+    * {@code countAt}.
+    *
+    * @return false, having written nothing, if it doesn't fit
+    */
+   static boolean addPresence(ByteBuffer buf, int countAt, long sender, String name, float x, float y) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      if (buf.remaining() < Long.BYTES + Short.BYTES + bytes.length + 2 * Float.BYTES) return false;
+      buf.putLong(sender).putShort((short) bytes.length).put(bytes).putFloat(x).putFloat(y);
+      buf.putShort(countAt, (short) (buf.getShort(countAt) + 1));
+      return true;
+   }
+
+   /**
+    * Writes the server's header for a client update; the body follows unchanged.
+    *
+    * @throws IllegalArgumentException if the source's name is too long for a datagram
+    */
+   static void writeServerHeader(ByteBuffer buf, byte kind, long seq, long sender, String source) {
+      byte[] name = source.getBytes(StandardCharsets.UTF_8);
+      if (name.length > MAX_DATAGRAM / 4) {
+         throw new IllegalArgumentException("Name too long for a datagram: " + name.length + " bytes");
+      }
+      buf.put(kind).putLong(seq).putLong(sender).putShort((short) name.length).put(name);
+   }
+
+   /**
+    * Reads a datagram from the server.
+    *
+    * @return false if it is malformed
+    */
+   static boolean readFromServer(ByteBuffer buf, Update update) {
+      try {
+         update.kind = buf.get();
+         update.seq = buf.getLong();
+         update.sender = buf.getLong();
+         byte[] name = new byte[buf.getShort()];
+         buf.get(name);
+         update.source = new String(name, StandardCharsets.UTF_8);
+         return readBody(buf, update);
+      } catch (BufferUnderflowException | NegativeArraySizeException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Reads the body for the update's kind.
+    *
+    * @return false if it is malformed or of an unknown kind
+    */
+   static boolean readBody(ByteBuffer buf, Update update) {
+      try {
+         switch (update.kind) {
+            case HELLO -> {
+               return true;
+            }
+            case CURSOR -> {
+               update.x = buf.getFloat();
+               update.y = buf.getFloat();
+               return true;
+            }
+            case PREVIEW -> {
+               update.rgb = buf.getInt();
+               update.radius = buf.getFloat();
+               int n = buf.getShort();
+               if (n < 0 || n > MAX_PREVIEW_POINTS) return false;
+               update.xs = new float[n];
+               update.ys = new float[n];
+               for (int i = 0; i < n; i++) {
+                  update.xs[i] = buf.getFloat();
+                  update.ys[i] = buf.getFloat();
+               }
+               return true;
+            }
+            case PRESENCE -> {
+               int n = buf.getShort();
+               if (n < 0) return false;
+               update.senders = new long[n];
+               update.names = new String[n];
+               update.xs = new float[n];
+               update.ys = new float[n];
+               for (int i = 0; i < n; i++) {
+                  update.senders[i] = buf.getLong();
+                  byte[] name = new byte[buf.getShort()];
+                  buf.get(name);
+                  update.names[i] = new String(name, StandardCharsets.UTF_8);
+                  update.xs[i] = buf.getFloat();
+                  update.ys[i] = buf.getFloat();
+               }
+               return true;
+            }
+            default -> {
+               return false;
+            }
+         }
+      } catch (BufferUnderflowException | NegativeArraySizeException e) {
+         return false;
+      }
+   } // readBody
+}
@@ -0,0 +1,249 @@
+package ajacoby.netsketch;
+
+import javax.swing.*;
+import java.awt.*;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client's end of the UDP side channel (see {@link Ephemeral}): sends
+ * our cursor and stroke previews, and keeps the latest of everyone
+ * else's for an overlay drawn on top of the canvas. The cursor is
+ * sampled at most {@link #setCursorRate cursor rate} times a second,
+ * however often the mouse moves.
+ * <p>
+ * Nothing here is reliable or ordered. Lost datagrams are simply
+ * superseded by the next one, and late ones are dropped by sequence
+ * number. Only datagrams from the server are read, and other clients
+ * are told apart by their {@link Ephemeral#senderId sender id}, since
+ * names needn't be unique.
+ */
+class EphemeralClient {
+   /** Cursor samples per second unless changed with {@link #setCursorRate}. */
+   static final int DEFAULT_CURSOR_RATE = 20;
+
+   /** Latest cursor and preview from another client on the board. */
+   private static class Remote {
+      final long[] lastSeq = new long[Ephemeral.KINDS];
+      volatile String name = "";
+      volatile long heardAt;
+      volatile float x = Float.NaN;
+      volatile float y;
+      /** Replaced as a whole, so the overlay never sees half an update. */
+      volatile Ephemeral.Update preview;
+   }
+
+   private final DatagramChannel channel;
+   private final AtomicLong nextSeq = new AtomicLong();
+   /** By sender id. */
+   private final Map<Long, Remote> remotes = new ConcurrentHashMap<>();
+   /** Where to send and who we are; replaced on every (re)connect. */
+   private volatile InetSocketAddress server;
+   private volatile long token;
+   /** Our sender id, to leave our cursor out of presence updates. */
+   private volatile long sender;
+   private long lastHelloAt = 0;
+   private volatile boolean isDirty = false;
+   /** Newest presence update from the server; only used by the receiver thread. */
+   private long lastPresenceSeq = 0;
+   /** Nanoseconds between cursor samples, or 0 not to share the cursor. */
+   private volatile long cursorIntervalNanos = 1_000_000_000L / DEFAULT_CURSOR_RATE;
+   private long cursorSentAt = 0;
+   /** Latest cursor position, sent on the next sample if changed. */
+   private volatile double cursorX, cursorY;
+   private volatile boolean isCursorMoved = false;
+   private final Overlay overlay = new Overlay();
+   /** The canvas the overlay lines up with. */
+   private JLabel canvas;
+
+   EphemeralClient() throws IOException {
+      channel = DatagramChannel.open();
+      channel.bind(null);
+      Thread receiver = new Thread(this::receiveLoop, "NetSketchClient-ephemeral");
+      receiver.setDaemon(true);
+      receiver.start();
+   }
+
+   /** Sends to the server just connected to, or nowhere if it offered no UDP port. */
+   void connectedTo(InetSocketAddress server, long token) {
+      this.server = server;
+      this.token = token;
+      sender = (token != 0) ? Ephemeral.senderId(token) : 0;
+      lastHelloAt = 0;
+      lastPresenceSeq = 0;
+      remotes.clear();
+      isDirty = true;
+   }
+
+   /** Notes where the cursor is; it goes out with the next sample. */
+   void moveCursor(double x, double y) {
+      cursorX = x;
+      cursorY = y;
+      isCursorMoved = true;
+   }
+
+   /** @param perSecond most cursor updates sent a second, or 0 not to share it */
+   void setCursorRate(int perSecond) {
+      cursorIntervalNanos = (perSecond > 0) ? 1_000_000_000L / perSecond : 0;
+   }
+
+   /** Sends the stroke in progress; {@code n == 0} ends the preview. */
+   void sendPreview(Color color, double radius, double[] xs, double[] ys, int n) {
+      send(Ephemeral.PREVIEW, buf -> Ephemeral.writePreview(buf, color.getRGB(), radius, xs, ys, n));
+   }
+
+   private interface Body {
+      void write(ByteBuffer buf);
+   }
+
+   private void send(byte kind, Body body) {
+      InetSocketAddress to = server;
+      if (to == null) return;
+      ByteBuffer buf = ByteBuffer.allocate(Ephemeral.MAX_DATAGRAM);
+      Ephemeral.writeClientHeader(buf, token, kind, nextSeq.incrementAndGet());
+      body.write(buf);
+      buf.flip();
+      try {
+         channel.send(buf, to);
+      } catch (IOException e) {
+         // Lossy by design; the next update replaces this one.
+      }
+   }
+
+   /**
+    * Once per frame on the Swing thread: samples the cursor, says hello
+    * now and then, forgets quiet clients, and repaints the overlay if
+    * anything changed.
+    */
+   void tick() {
+      long interval = cursorIntervalNanos;
+      long nanos = System.nanoTime();
+      if (isCursorMoved && interval > 0 && nanos - cursorSentAt >= interval) {
+         isCursorMoved = false;
+         cursorSentAt = nanos;
+         double x = cursorX;
+         double y = cursorY;
+         send(Ephemeral.CURSOR, buf -> Ephemeral.writeCursor(buf, x, y));
+      }
+      long now = System.currentTimeMillis();
+      if (now - lastHelloAt >= Ephemeral.HELLO_MILLIS) {
+         lastHelloAt = now;
+         send(Ephemeral.HELLO, buf -> {});
+      }
+      if (remotes.values().removeIf(remote -> now - remote.heardAt > Ephemeral.EXPIRE_MILLIS)) {
+         isDirty = true;
+      }
+      if (isDirty) {
+         isDirty = false;
+         overlay.repaint();
+      }
+   }
+
+   /** Returns the overlay for the window's glass pane, lined up with the canvas. */
+   JComponent getOverlay(JLabel canvas) {
+      this.canvas = canvas;
+      return overlay;
+   }
+
+   void close() {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         System.err.println("Unable to close datagram channel: " + e.getMessage());
+      }
+   }
+
+   private void receiveLoop() {
+      ByteBuffer buf = ByteBuffer.allocate(Ephemeral.MAX_DATAGRAM + 256);
+      while (true) {
+         try {
+            buf.clear();
+            SocketAddress from = channel.receive(buf);
+            if (!from.equals(server)) continue; // not from the server we're connected to
+            buf.flip();
+            Ephemeral.Update update = new Ephemeral.Update();
+            if (!Ephemeral.readFromServer(buf, update) || update.kind == Ephemeral.HELLO) continue;
+            if (update.kind == Ephemeral.PRESENCE) {
+               presence(update);
+               continue;
+            }
+            Remote remote = remotes.computeIfAbsent(update.sender, s -> new Remote());
+            if (update.seq <= remote.lastSeq[update.kind]) continue; // overtaken by a newer one
+            remote.lastSeq[update.kind] = update.seq;
+            remote.name = update.source;
+            remote.heardAt = System.currentTimeMillis();
+            remote.preview = update;
+            isDirty = true;
+         } catch (ClosedChannelException e) {
+            return;
+         } catch (IOException e) {
+            System.err.println("Ephemeral: " + e.getMessage());
+         } catch (RuntimeException e) {
+            // A bad datagram mustn't stop cursors and previews
+            System.err.println("Ephemeral: dropped a datagram: " + e);
+         }
+      }
+   } // receiveLoop
+
+   /** Moves the cursors in a presence update; several may share a sequence number. */
+   private void presence(Ephemeral.Update update) {
+      if (update.seq < lastPresenceSeq) return;
+      lastPresenceSeq = update.seq;
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < update.names.length; i++) {
+         if (update.senders[i] == sender) continue;
+         Remote remote = remotes.computeIfAbsent(update.senders[i], s -> new Remote());
+         remote.name = update.names[i];
+         remote.heardAt = now;
+         remote.y = update.ys[i];
+         remote.x = update.xs[i];
+      }
+      isDirty = true;
+   }
+
+   /** Draws the remote cursors and previews over the canvas. */
+   private class Overlay extends JComponent {
+      private static final long serialVersionUID = 1;
+
+      @Override
+      protected void paintComponent(Graphics g) {
+         if (remotes.isEmpty() || canvas == null) return;
+         Graphics2D g2 = (Graphics2D) g.create();
+         g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+         Point origin = SwingUtilities.convertPoint(canvas, 0, 0, this);
+         g2.translate(origin.x, origin.y);
+         g2.clipRect(0, 0, canvas.getWidth(), canvas.getHeight());
+         int w = canvas.getWidth();
+         int h = canvas.getHeight();
+         remotes.forEach((id, remote) -> {
+            Ephemeral.Update preview = remote.preview;
+            if (preview != null && preview.xs.length > 1) {
+               g2.setColor(new Color(preview.rgb, true));
+               g2.setStroke(new BasicStroke(Math.max(1f, preview.radius * 2 * w),
+                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+               for (int i = 1; i < preview.xs.length; i++) {
+                  g2.drawLine(Math.round(preview.xs[i - 1] * w), Math.round((1 - preview.ys[i - 1]) * h),
+                        Math.round(preview.xs[i] * w), Math.round((1 - preview.ys[i]) * h));
+               }
+            }
+            float x = remote.x;
+            if (!Float.isNaN(x)) {
+               int px = Math.round(x * w);
+               int py = Math.round((1 - remote.y) * h);
+               g2.setColor(Color.DARK_GRAY);
+               g2.setStroke(new BasicStroke(1.5f));
+               g2.drawOval(px - 4, py - 4, 8, 8);
+               g2.drawString(remote.name, px + 7, py - 7);
+            }
+         });
+         g2.dispose();
+      } // paintComponent
+   } // Overlay
+}
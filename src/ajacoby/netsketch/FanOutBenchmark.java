@@ -0,0 +1,186 @@
+package ajacoby.netsketch;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Measures how broadcasting degrades with the number of clients.
+ * <p>
+ * For each client count, starts a headless NetSketchServer in this JVM
+ * and connects that many {@link NetSketchLoadGenerator} drawers over
+ * loopback. Together the drawers send a fixed total event rate, so only
+ * the fan-out grows. Every event is timestamped, and every recipient
+ * times its delivery, which works because server and clients share a
+ * clock.
+ * <p>
+ * Server CPU is the CPU time of the server's own threads - readers,
+ * writers and render workers - so the load generator's work isn't
+ * counted.
+ * <p>
+ * Arguments are {@code key=value} pairs, for example
+ * {@code java ajacoby.netsketch.FanOutBenchmark clients=1,10,100,1000 rate=1000 seconds=10}.
+ * See {@link #DEFAULTS}.
+ */
+public class FanOutBenchmark {
+   /** Every supported argument with its default value. */
+   public static final Map<String, String> DEFAULTS = Map.of(
+         "clients", "1,10,100,1000",  // client counts to run, in order
+         "rate", "1000",              // events per second from all clients together
+         "seconds", "10",             // measured time per client count
+         "warmup", "5",               // seconds of untimed load before the first run
+         "boards", "1",               // boards the clients are dealt out over
+         "threads", "4",              // load generator selector threads
+         "pattern", "strokes");       // load generator stroke pattern
+
+   private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+   private final Map<String, String> settings;
+
+   public FanOutBenchmark(Map<String, String> settings) {
+      this.settings = settings;
+   }
+
+   /** One run's numbers. */
+   private static class Result {
+      int clients;
+      double seconds;
+      long eventsSent;
+      long deliveries;
+      LatencyHistogram delivery;
+      LatencyHistogram broadcast;
+      double serverCpuSeconds;
+
+      static String header() {
+         return String.format(Locale.ROOT, "%8s %10s %12s %9s %9s %9s %9s %12s",
+               "clients", "events/s", "deliveries/s", "p50 ms", "p99 ms", "max ms",
+               "bcast p99", "server us/d");
+      }
+
+      @Override
+      public String toString() {
+         return String.format(Locale.ROOT, "%8d %10.0f %12.0f %9.3f %9.3f %9.3f %9.3f %12.3f",
+               clients, eventsSent / seconds, deliveries / seconds,
+               delivery.percentile(50) / 1e6, delivery.percentile(99) / 1e6, delivery.getMax() / 1e6,
+               broadcast.percentile(99) / 1e6,
+               (deliveries == 0) ? 0 : serverCpuSeconds * 1e6 / deliveries);
+      }
+   } // Result
+
+   private Result run(int clients, long seconds) throws Exception {
+      NetSketchServer server = NetSketchServer.startInProcess(false);
+      try {
+         Map<String, String> load = new HashMap<>(NetSketchLoadGenerator.DEFAULTS);
+         load.put("port", String.valueOf(server.getPort()));
+         load.put("drawers", String.valueOf(clients));
+         load.put("boards", settings.get("boards"));
+         load.put("threads", settings.get("threads"));
+         load.put("pattern", settings.get("pattern"));
+         load.put("rate", String.valueOf(Double.parseDouble(settings.get("rate")) / clients));
+         load.put("seconds", String.valueOf(seconds));
+         load.put("stamp", "true");
+         NetSketchLoadGenerator generator = new NetSketchLoadGenerator(load);
+         generator.connect();
+         awaitClients(server, clients);
+         Map<Long, Long> cpuAtStart = serverThreadCpu();
+         long start = System.nanoTime();
+         generator.measure();
+         Result result = new Result();
+         result.seconds = (System.nanoTime() - start) / 1e9;
+         result.serverCpuSeconds = cpuSince(cpuAtStart) / 1e9;
+         generator.close();
+         result.clients = clients;
+         result.eventsSent = generator.getEventsSent();
+         result.deliveries = generator.getEventsReceived();
+         result.delivery = generator.getDeliveryLatency();
+         result.broadcast = server.getBroadcastLatency();
+         return result;
+      } finally {
+         server.shutdown();
+      }
+   } // run
+
+   /** Waits (a while) for the server to have started a thread for every client. */
+   private static void awaitClients(NetSketchServer server, int clients) throws InterruptedException {
+      long deadline = System.nanoTime() + 10_000_000_000L;
+      while (server.getClientCount() < clients && System.nanoTime() < deadline) {
+         Thread.sleep(10);
+      }
+   }
+
+   /** CPU time so far of each server thread (readers, writers, render workers...), by thread id. */
+   private static Map<Long, Long> serverThreadCpu() {
+      Map<Long, Long> cpu = new HashMap<>();
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+         if (NetSketchServer.isServerThread(thread.getName())) {
+            long nanos = THREADS.getThreadCpuTime(thread.getId());
+            if (nanos >= 0) cpu.put(thread.getId(), nanos);
+         }
+      }
+      return cpu;
+   }
+
+   /** CPU nanoseconds used since {@code start} by the threads in it that are still alive. */
+   private static long cpuSince(Map<Long, Long> start) {
+      long total = 0;
+      for (Map.Entry<Long, Long> entry : start.entrySet()) {
+         long nanos = THREADS.getThreadCpuTime(entry.getKey());
+         if (nanos >= 0) total += nanos - entry.getValue();
+      }
+      return total;
+   }
+
+   /** Runs every client count, printing one row each; the server's own logging goes to stderr. */
+   public void run() throws Exception {
+      PrintStream results = System.out;
+      System.setOut(System.err);
+      try {
+         runAll(results);
+      } finally {
+         System.setOut(results);
+      }
+   }
+
+   private void runAll(PrintStream results) throws Exception {
+      String[] counts = settings.get("clients").split(",");
+      long warmup = Long.parseLong(settings.get("warmup"));
+      if (warmup > 0) {
+         System.err.println("Warming up for " + warmup + " s");
+         run(Integer.parseInt(counts[0].trim()), warmup);
+      }
+      long seconds = Long.parseLong(settings.get("seconds"));
+      results.println(Result.header());
+      for (String count : counts) {
+         results.println(run(Integer.parseInt(count.trim()), seconds));
+      }
+   }
+
+   /** Parses {@code key=value} arguments over {@link #DEFAULTS}. */
+   static Map<String, String> parseArgs(String[] args) {
+      Map<String, String> settings = new HashMap<>(DEFAULTS);
+      for (String arg : args) {
+         int eq = arg.indexOf('=');
+         String key = (eq < 0) ? arg : arg.substring(0, eq);
+         if (eq < 0 || !DEFAULTS.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown argument: " + arg + "; expected key=value with key in "
+                  + new TreeSet<>(DEFAULTS.keySet()));
+         }
+         settings.put(key, arg.substring(eq + 1));
+      }
+      return settings;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (System.getProperty("java.awt.headless") == null) {
+         System.setProperty("java.awt.headless", "true");
+      }
+      if (!THREADS.isThreadCpuTimeSupported()) {
+         System.err.println("Thread CPU time not supported; server CPU will read 0");
+      }
+      new FanOutBenchmark(parseArgs(args)).run();
+   }
+}
@@ -0,0 +1,130 @@
+package ajacoby.netsketch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Credit-based flow control between a client and the server, in both
+ * directions, when the client asks for it with {@link Handshake#CREDIT}.
+ * <p>
+ * Each side says in the handshake how many events it can take - its
+ * window - and the other side sends no more than that until it is
+ * granted more with a CREDIT record (see {@link DrawEventCodec#credit}).
+ * A receiver grants credit as it actually gets through events: the
+ * server once it has published them, the client once it has drawn them,
+ * so a slow renderer holds the server back instead of piling events up
+ * in the client. Only frames that carry an event count; control frames
+ * such as SEQ and CREDIT are always sent.
+ */
+final class FlowControl {
+   /** Events the server takes from a client before granting more. */
+   static final long SERVER_WINDOW = 1024;
+   /** Events a client takes from the server before granting more. */
+   static final long CLIENT_WINDOW = 4096;
+   /** Largest window either side accepts from the other. */
+   static final long MAX_WINDOW = 1 << 20;
+
+   private FlowControl() {}
+
+   /**
+    * Reads a window sent in a {@link Handshake#CREDIT} option.
+    *
+    * @return the window, or -1 if it isn't a number from 1 to {@link #MAX_WINDOW}
+    */
+   static long parseWindow(String window) {
+      try {
+         long frames = Long.parseLong(window);
+         return (frames >= 1 && frames <= MAX_WINDOW) ? frames : -1;
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   /** The sending side of one direction: how many events may still be sent. */
+   static final class Sender {
+      private long credit;
+      // Read by reports and metrics
+      private volatile long stalls = 0;
+      private volatile long stalledNanos = 0;
+
+      Sender(long window) {
+         credit = window;
+      }
+
+      /** Adds credit, never more than {@link #MAX_WINDOW} in all, so a bad grant can't overflow it. */
+      synchronized void grant(long frames) {
+         credit = Math.min(credit + Math.min(frames, MAX_WINDOW), MAX_WINDOW);
+         notifyAll();
+      }
+
+      synchronized long available() {
+         return credit;
+      }
+
+      /** Uses up credit; only the thread that checked {@link #available} may spend it. */
+      synchronized void spend(long frames) {
+         credit -= frames;
+      }
+
+      /**
+       * Waits until there is some credit.
+       *
+       * @return false if there still is none after the timeout
+       */
+      synchronized boolean awaitCredit(long timeoutMillis) throws InterruptedException {
+         if (credit > 0) return true;
+         long start = System.nanoTime();
+         long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+         long remaining;
+         while (credit <= 0 && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+         }
+         stalls++;
+         stalledNanos += System.nanoTime() - start;
+         return credit > 0;
+      } // awaitCredit
+
+      /** Times a sender found no credit. */
+      long getStalls() {
+         return stalls;
+      }
+
+      /** Time spent waiting for credit. */
+      double getStalledSeconds() {
+         return stalledNanos / 1e9;
+      }
+   } // Sender
+
+   /**
+    * The receiving side of one direction: counts events got through and
+    * grants them back in batches of half the window, so credit never
+    * runs out while the receiver keeps up.
+    */
+   static final class Receiver {
+      private final long threshold;
+      private final AtomicLong pending = new AtomicLong();
+      private final AtomicLong granted = new AtomicLong();
+
+      Receiver(long window) {
+         threshold = Math.max(1, window / 2);
+      }
+
+      /** Counts events received and dealt with; safe from any thread. */
+      void consumed(long frames) {
+         pending.addAndGet(frames);
+      }
+
+      /** Returns the credit to grant now and counts it as granted, or 0 if it isn't worth a CREDIT record yet. */
+      long takeGrant() {
+         if (pending.get() < threshold) return 0;
+         long frames = pending.getAndSet(0);
+         granted.addAndGet(frames);
+         return frames;
+      }
+
+      /** Events granted so far. */
+      long getGranted() {
+         return granted.get();
+      }
+   } // Receiver
+}
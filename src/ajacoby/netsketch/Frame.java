@@ -0,0 +1,106 @@
+package ajacoby.netsketch;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One DrawEvent encoded once and shared by every recipient.
+ * <p>
+ * The bytes are immutable; each queue that holds the frame calls
+ * {@link #retain()} and later {@link #release()}. Small frames live in
+ * pooled direct buffers that go back to the pool when the last holder
+ * releases them, so a broadcast costs one encode and one copy no matter
+ * how many clients are connected.
+ */
+final class Frame {
+   /** Size of a pooled direct buffer; larger frames fall back to the heap. */
+   static final int SLAB_SIZE = 128;
+   private static final int MAX_POOLED_SLABS = 4096;
+   private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+   private static final AtomicInteger pooledSlabs = new AtomicInteger();
+
+   private final ByteBuffer data;
+   /** Writable pooled buffer behind {@code data}, or null if not pooled. */
+   private final ByteBuffer slab;
+   private final AtomicInteger refCount = new AtomicInteger(1);
+   /** System.nanoTime() when the frame was encoded. */
+   private final long encodedAt = System.nanoTime();
+   /** Whether the frame carries no DrawEvent, so it costs no flow-control credit. */
+   private boolean isControl = false;
+
+   private Frame(ByteBuffer data, ByteBuffer slab) {
+      this.data = data;
+      this.slab = slab;
+   }
+
+   /** Returns a new, independent read-only view of the frame bytes. */
+   ByteBuffer view() {
+      return data.duplicate();
+   }
+
+   /** Number of bytes in the frame. */
+   int size() {
+      return data.remaining();
+   }
+
+   long getEncodedAt() {
+      return encodedAt;
+   }
+
+   boolean isControl() {
+      return isControl;
+   }
+
+   Frame retain() {
+      if (refCount.getAndIncrement() <= 0) {
+         throw new IllegalStateException("frame already released");
+      }
+      return this;
+   }
+
+   void release() {
+      int count = refCount.decrementAndGet();
+      if (count == 0 && slab != null) {
+         recycle(slab);
+      } else if (count < 0) {
+         throw new IllegalStateException("frame released too many times");
+      }
+   }
+
+   /**
+    * Copies encoded bytes into a new frame holding one reference.
+    * Frames are built by {@link DrawEventCodec.Encoder}.
+    */
+   static Frame copyOf(byte[] bytes, int len) {
+      if (len > SLAB_SIZE) {
+         byte[] copy = Arrays.copyOf(bytes, len);
+         return new Frame(ByteBuffer.wrap(copy).asReadOnlyBuffer(), null);
+      }
+      ByteBuffer slab = pool.poll();
+      if (slab == null) {
+         slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+      } else {
+         pooledSlabs.decrementAndGet();
+      }
+      slab.clear();
+      slab.put(bytes, 0, len).flip();
+      return new Frame(slab.asReadOnlyBuffer(), slab);
+   }
+
+   /** Like {@link #copyOf}, for a frame of records that aren't DrawEvents, such as SEQ or CREDIT. */
+   static Frame controlOf(byte[] bytes, int len) {
+      Frame frame = copyOf(bytes, len);
+      frame.isControl = true;
+      return frame;
+   }
+
+   private static void recycle(ByteBuffer slab) {
+      if (pooledSlabs.incrementAndGet() <= MAX_POOLED_SLABS) {
+         pool.offer(slab);
+      } else {
+         pooledSlabs.decrementAndGet(); // pool is full; let the GC have it
+      }
+   }
+}
@@ -0,0 +1,220 @@
+package ajacoby.netsketch;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Connection handshake exchanged before any DrawEvents.
+ * <p>
+ * The client sends {@link NetSketchClient#CONNECT_PREFIX} followed by its
+ * name, then one {@code key=value} option per line. The server answers
+ * with {@link #ACCEPT_PREFIX} and the options it agreed to; anything it
+ * leaves out is off for that connection. Both lines are written with
+ * {@link DataOutputStream#writeUTF}, so neither side reads past the
+ * handshake before switching streams. Names, keys and values can't
+ * contain a newline, and names and keys can't contain {@code '='}, so
+ * nothing sent in one can pass for an option.
+ */
+final class Handshake {
+   public static final String ACCEPT_PREFIX = "NetSketchServer accept: ";
+   /** Option: compress this connection with Deflater/Inflater. */
+   public static final String COMPRESS = "compress";
+   public static final String DEFLATE = "deflate";
+   /** Option: the board (room) to join; boards are created on first use. */
+   public static final String BOARD = "board";
+   /** Board for clients that don't name one. */
+   public static final String DEFAULT_BOARD = "main";
+   /** Longest board name accepted. */
+   public static final int MAX_BOARD_NAME = 64;
+   /**
+    * Longest client name kept; longer ones are cut short. The server puts
+    * names in datagrams (see {@link Ephemeral}), which have to stay small.
+    */
+   public static final int MAX_NAME = 64;
+   /**
+    * Option: {@code true} to receive the board's history and then be
+    * disconnected, without joining the board. Used to move a board
+    * between servers.
+    */
+   public static final String SNAPSHOT = "snapshot";
+   /** Option: {@code true} for a health check; the server answers and hangs up. */
+   public static final String PING = "ping";
+   /**
+    * Option: identifies one board's history. Sequence numbers only mean
+    * something within the same epoch; the server always sends it.
+    */
+   public static final String EPOCH = "epoch";
+   /**
+    * Option: sequence number of the last event the client has, to get
+    * only the events after it. The server echoes it if it can resume
+    * (same epoch, no CLEAR since); otherwise the client gets the full
+    * history and must reset its decoder.
+    */
+   public static final String RESUME = "resume";
+   /**
+    * Option: {@code true} from a standby server that wants every board's
+    * events; only granted with the shared secret (see {@link #RELAY}).
+    */
+   public static final String REPLICATE = "replicate";
+   /**
+    * Option: the shared secret (see {@link #SECRET_ENV}) from a relay
+    * server (see {@link RelayUplink}), which sends the events of all its
+    * clients and limits each of them itself, from a router moving a
+    * board, or from a standby asking to {@link #REPLICATE}. With the
+    * right secret the connection is exempt from the per-client ingress
+    * limits, and may replicate.
+    */
+   public static final String RELAY = "relay";
+   /**
+    * Environment variable holding the secret servers, relays, standbys
+    * and routers share; without it nobody is exempt from the ingress
+    * limits, and nobody can replicate.
+    */
+   public static final String SECRET_ENV = "NETSKETCH_SECRET";
+   /**
+    * Option: {@code true} from a client that wants cursors and previews
+    * over UDP (see {@link Ephemeral}); the server answers with its UDP
+    * port and the client's {@link #TOKEN}.
+    */
+   public static final String UDP = "udp";
+   /** Option: identifies the client's datagrams to the server. */
+   public static final String TOKEN = "token";
+   /**
+    * Option: how many events the sender can take before it grants more
+    * with CREDIT records (see {@link FlowControl}). A server that agrees
+    * answers with its own window; otherwise neither side is limited.
+    */
+   public static final String CREDIT = "credit";
+
+   private final String name;
+   private final Map<String, String> options = new LinkedHashMap<>();
+
+   /**
+    * @throws IllegalArgumentException if the name contains a newline or {@code '='}
+    */
+   Handshake(String name) {
+      if (!isValidName(name)) {
+         throw new IllegalArgumentException("Name can't contain a newline or '=': " + name);
+      }
+      this.name = name;
+   }
+
+   /** Whether the name can be sent in a handshake. */
+   public static boolean isValidName(String name) {
+      return name.indexOf('\n') < 0 && name.indexOf('=') < 0;
+   }
+
+   /** The shared secret from {@link #SECRET_ENV}, or null if it isn't set. */
+   public static String sharedSecret() {
+      String secret = System.getenv(SECRET_ENV);
+      return (secret == null || secret.isBlank()) ? null : secret.strip();
+   }
+
+   /** Whether the request carries the given secret as {@link #RELAY}; never if the secret is null. */
+   public boolean hasSecret(String secret) {
+      String sent = options.get(RELAY);
+      return secret != null && sent != null && MessageDigest.isEqual(
+            sent.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /** The name given, cut to {@link #MAX_NAME} characters. */
+   public String getName() {
+      if (name.length() <= MAX_NAME) {
+         return name;
+      }
+      int end = Character.isHighSurrogate(name.charAt(MAX_NAME - 1)) ? MAX_NAME - 1 : MAX_NAME;
+      return name.substring(0, end);
+   }
+
+   /**
+    * @throws IllegalArgumentException if the key or value contains a
+    *         newline, or the key contains {@code '='}
+    */
+   public Handshake with(String key, String value) {
+      if (!isValidName(key) || value.indexOf('\n') >= 0) {
+         throw new IllegalArgumentException("Bad handshake option: " + key);
+      }
+      options.put(key, value);
+      return this;
+   }
+
+   public Handshake without(String key) {
+      options.remove(key);
+      return this;
+   }
+
+   public String get(String key) {
+      return options.get(key);
+   }
+
+   public boolean has(String key, String value) {
+      return value.equals(options.get(key));
+   }
+
+   /** The board asked for, or {@link #DEFAULT_BOARD} if none (or no usable name) was given. */
+   public String getBoard() {
+      String board = options.get(BOARD);
+      if (board == null || board.isBlank() || board.length() > MAX_BOARD_NAME) {
+         return DEFAULT_BOARD;
+      }
+      return board.strip();
+   }
+
+   /** Sent by the client right after connecting. */
+   public void writeConnect(DataOutputStream out) throws IOException {
+      out.writeUTF(format(NetSketchClient.CONNECT_PREFIX + name));
+      out.flush();
+   }
+
+   public static Handshake readConnect(DataInputStream in) throws IOException {
+      return parse(in.readUTF(), NetSketchClient.CONNECT_PREFIX);
+   }
+
+   /** Sent by the server with the options it accepted. */
+   public void writeAccept(DataOutputStream out) throws IOException {
+      out.writeUTF(format(ACCEPT_PREFIX + name));
+      out.flush();
+   }
+
+   public static Handshake readAccept(DataInputStream in) throws IOException {
+      return parse(in.readUTF(), ACCEPT_PREFIX);
+   }
+
+   private String format(String firstLine) {
+      StringBuilder sb = new StringBuilder(firstLine);
+      options.forEach((key, value) -> sb.append('\n').append(key).append('=').append(value));
+      return sb.toString();
+   }
+
+   private static Handshake parse(String msg, String prefix) throws IOException {
+      if (!msg.startsWith(prefix)) {
+         throw new IOException("Unexpected handshake: " + msg);
+      }
+      String[] lines = msg.split("\n");
+      String name = lines[0].substring(prefix.length());
+      if (!isValidName(name)) {
+         throw new IOException("Bad name in handshake: " + name);
+      }
+      Handshake handshake = new Handshake(name);
+      for (int i = 1; i < lines.length; i++) {
+         int eq = lines[i].indexOf('=');
+         if (eq > 0) {
+            handshake.with(lines[i].substring(0, eq), lines[i].substring(eq + 1));
+         }
+      }
+      return handshake;
+   }
+
+   @Override
+   public String toString() {
+      return "Handshake{" +
+            "name='" + name + '\'' +
+            ", options=" + options +
+            '}';
+   }
+}
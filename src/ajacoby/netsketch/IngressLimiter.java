@@ -0,0 +1,139 @@
+package ajacoby.netsketch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token buckets on the events and bytes one client sends, checked by the
+ * server thread reading from it.
+ * <p>
+ * A client over either limit is throttled by not reading from it until
+ * it is back under: its data waits in the socket buffers, so TCP makes
+ * its writes block and the flood costs the client rather than the
+ * server or the rest of the board. A client still over the limit after
+ * {@link Limits#disconnectAfterMillis} of near-continuous throttling is
+ * disconnected.
+ */
+class IngressLimiter {
+   /** Time without throttling that ends a run of it. */
+   private static final long RUN_GAP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+   /** Limits applied to every client of a server. */
+   static final class Limits {
+      /** Several times what a fast drawer sends; stops runaway clients such as a stress test. */
+      static final Limits DEFAULT = new Limits(1000, 256 * 1024, 10_000);
+      static final Limits UNLIMITED = new Limits(0, 0, 0);
+
+      /** Sustained rates; 0 for no limit. Bursts of up to one second's worth pass unthrottled. */
+      final double eventsPerSecond;
+      final double bytesPerSecond;
+      /** How long a client may be throttled without a break; 0 never to disconnect. */
+      final long disconnectAfterMillis;
+
+      Limits(double eventsPerSecond, double bytesPerSecond, long disconnectAfterMillis) {
+         this.eventsPerSecond = eventsPerSecond;
+         this.bytesPerSecond = bytesPerSecond;
+         this.disconnectAfterMillis = disconnectAfterMillis;
+      }
+
+      /**
+       * Parses {@code events} or {@code events,bytes} (per second), keeping
+       * the default for anything left out; {@code 0} turns a limit off.
+       */
+      static Limits parse(String spec) {
+         String[] parts = spec.split(",");
+         double events = Double.parseDouble(parts[0].strip());
+         double bytes = (parts.length > 1) ? Double.parseDouble(parts[1].strip()) : DEFAULT.bytesPerSecond;
+         return new Limits(events, bytes, DEFAULT.disconnectAfterMillis);
+      }
+
+      @Override
+      public String toString() {
+         return (eventsPerSecond > 0 ? (long) eventsPerSecond + " events/s" : "unlimited events") + ", "
+               + (bytesPerSecond > 0 ? (long) bytesPerSecond + " bytes/s" : "unlimited bytes");
+      }
+   } // Limits
+
+   /** A sustained rate with bursts up to one second's worth; only used by one thread. */
+   private static final class TokenBucket {
+      private final double perNano;
+      private final double capacity;
+      private double tokens;
+      private long updatedAt = System.nanoTime();
+
+      TokenBucket(double perSecond) {
+         perNano = perSecond / 1e9;
+         capacity = perSecond;
+         tokens = capacity;
+      }
+
+      /** Takes the tokens, going into debt if need be; returns how long until the debt is paid. */
+      long take(double cost, long now) {
+         tokens = Math.min(capacity, tokens + (now - updatedAt) * perNano);
+         updatedAt = now;
+         tokens -= cost;
+         return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / perNano);
+      }
+   }
+
+   private final Limits limits;
+   /** Null where there is no limit. */
+   private final TokenBucket events;
+   private final TokenBucket bytes;
+   /**
+    * Start of the current run of throttling, or 0 if there is none. A
+    * run only ends after a whole {@link #RUN_GAP_NANOS} without any, since
+    * a late wakeup can let the odd read of a flood through on time.
+    */
+   private long throttledSince = 0;
+   private long lastThrottledAt = 0;
+   // Read by the metrics thread
+   private volatile long throttleCount = 0;
+   private volatile long throttledNanos = 0;
+
+   IngressLimiter(Limits limits) {
+      this.limits = limits;
+      events = (limits.eventsPerSecond > 0) ? new TokenBucket(limits.eventsPerSecond) : null;
+      bytes = (limits.bytesPerSecond > 0) ? new TokenBucket(limits.bytesPerSecond) : null;
+   }
+
+   /**
+    * Accounts for one event just read, and waits while the client is over
+    * its limits.
+    *
+    * @return false if the client has been over its limits too long and
+    *         should be disconnected
+    */
+   boolean admit(int eventBytes) throws InterruptedException {
+      long now = System.nanoTime();
+      long wait = 0;
+      if (events != null) wait = events.take(1, now);
+      if (bytes != null) wait = Math.max(wait, bytes.take(eventBytes, now));
+      if (wait == 0) {
+         if (now - lastThrottledAt > RUN_GAP_NANOS) {
+            throttledSince = 0;
+         }
+         return true;
+      }
+      lastThrottledAt = now;
+      if (throttledSince == 0) {
+         throttledSince = now;
+      } else if (limits.disconnectAfterMillis > 0
+            && now - throttledSince > TimeUnit.MILLISECONDS.toNanos(limits.disconnectAfterMillis)) {
+         return false;
+      }
+      throttleCount++;
+      throttledNanos += wait;
+      TimeUnit.NANOSECONDS.sleep(wait);
+      return true;
+   } // admit
+
+   /** Reads that had to wait. */
+   long getThrottleCount() {
+      return throttleCount;
+   }
+
+   /** Time spent not reading from the client. */
+   double getThrottledSeconds() {
+      return throttledNanos / 1e9;
+   }
+}
@@ -0,0 +1,114 @@
+package ajacoby.netsketch;
+
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-bucketed latency histogram in the style of HdrHistogram.
+ * <p>
+ * Values (nanoseconds) are bucketed by power of two, and each power of
+ * two is split into {@code 2^}{@value #SUB_BUCKET_BITS} linear
+ * sub-buckets, so every recorded value is kept to within about 3% no
+ * matter how large it is. Recording is lock-free and allocation-free,
+ * so it is cheap enough to leave on in the event pipeline.
+ */
+final class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   /** Values at or above 2^MAX_BITS ns (about 18 minutes) are clamped. */
+   private static final int MAX_BITS = 40;
+
+   private final String name;
+   private final AtomicLongArray counts = new AtomicLongArray((MAX_BITS + 1) * SUB_BUCKETS);
+   private final AtomicLong total = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   LatencyHistogram(String name) {
+      this.name = name;
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   /** Records one latency; negative values (clock skew) are recorded as 0. */
+   public void record(long nanos) {
+      long value = Math.max(0, Math.min(nanos, (1L << MAX_BITS) - 1));
+      counts.incrementAndGet(index(value));
+      total.incrementAndGet();
+      sum.addAndGet(value);
+      max.accumulateAndGet(value, Math::max);
+   }
+
+   public void recordMicros(long micros) {
+      record(TimeUnit.MICROSECONDS.toNanos(micros));
+   }
+
+   public long getCount() {
+      return total.get();
+   }
+
+   /** Upper bound, in nanoseconds, of the bucket holding the given percentile. */
+   public long percentile(double percentile) {
+      long count = total.get();
+      if (count == 0) return 0;
+      long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length(); i++) {
+         seen += counts.get(i);
+         if (seen >= target) {
+            return Math.min(upperBound(i), max.get());
+         }
+      }
+      return max.get();
+   }
+
+   public long getMax() {
+      return max.get();
+   }
+
+   /** Sum of all recorded values, in nanoseconds. */
+   public long getSum() {
+      return sum.get();
+   }
+
+   public double getMean() {
+      long count = total.get();
+      return (count == 0) ? 0 : (double) sum.get() / count;
+   }
+
+   /** One line with count, mean and the usual percentiles, in milliseconds. */
+   public String summary() {
+      return String.format(Locale.ROOT,
+            "%-12s n=%-8d mean=%8.3f p50=%8.3f p99=%8.3f p999=%8.3f max=%8.3f ms",
+            name, getCount(), getMean() / 1e6, percentile(50) / 1e6,
+            percentile(99) / 1e6, percentile(99.9) / 1e6, getMax() / 1e6);
+   }
+
+   /** Wall-clock time in microseconds since the epoch, for timestamps that cross machines. */
+   static long epochMicros() {
+      Instant now = Instant.now();
+      return TimeUnit.SECONDS.toMicros(now.getEpochSecond()) + now.getNano() / 1000;
+   }
+
+   private static int index(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value; // the first power-of-two range is exact
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value); // >= SUB_BUCKET_BITS
+      int shift = exponent - SUB_BUCKET_BITS;
+      int sub = (int) (value >>> shift) - SUB_BUCKETS; // drops the leading 1 bit
+      return (shift + 1) * SUB_BUCKETS + sub;
+   }
+
+   private static long upperBound(int index) {
+      int shift = index / SUB_BUCKETS - 1;
+      int sub = index % SUB_BUCKETS;
+      if (shift < 0) return sub;
+      return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+   }
+}
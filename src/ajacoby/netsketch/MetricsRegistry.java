@@ -0,0 +1,180 @@
+package ajacoby.netsketch;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and latency summaries, served as Prometheus text
+ * (exposition format 0.0.4) from a small JDK HttpServer.
+ * <p>
+ * Counters only ever go up; per-second rates are left to the scraper
+ * ({@code rate(netsketch_events_in_total[1m])}). Gauges and summaries
+ * are computed when scraped, so registering one costs nothing on the
+ * event path.
+ */
+final class MetricsRegistry {
+   /** Path the metrics are served from. */
+   static final String PATH = "/metrics";
+
+   /** Produces the current samples of one metric family when scraped. */
+   interface Sampler {
+      void sample(Samples samples);
+   }
+
+   /** Collects the samples of one family; labels are name/value pairs. */
+   static final class Samples {
+      private final StringBuilder out;
+      private final String name;
+
+      private Samples(StringBuilder out, String name) {
+         this.out = out;
+         this.name = name;
+      }
+
+      void add(double value, String... labels) {
+         addSuffixed("", value, labels);
+      }
+
+      private void addSuffixed(String suffix, double value, String... labels) {
+         out.append(name).append(suffix);
+         if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+               if (i > 0) out.append(',');
+               out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            out.append('}');
+         }
+         out.append(' ').append(format(value)).append('\n');
+      }
+   } // Samples
+
+   /** A counter split by the value of one label, such as the event type. */
+   static final class LabeledCounter {
+      private final String label;
+      private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+      private LabeledCounter(String label) {
+         this.label = label;
+      }
+
+      void increment(String value) {
+         add(value, 1);
+      }
+
+      void add(String value, long amount) {
+         counts.computeIfAbsent(value, v -> new LongAdder()).add(amount);
+      }
+
+      private void sample(Samples samples) {
+         counts.forEach((value, count) -> samples.add(count.sum(), label, value));
+      }
+   } // LabeledCounter
+
+   private static class Family {
+      final String name;
+      final String help;
+      final String type;
+      final Sampler sampler;
+
+      Family(String name, String help, String type, Sampler sampler) {
+         this.name = name;
+         this.help = help;
+         this.type = type;
+         this.sampler = sampler;
+      }
+   }
+
+   private final List<Family> families = new ArrayList<>();
+   private HttpServer httpServer;
+
+   /** Registers a counter whose samples come from elsewhere, such as a writer's byte count. */
+   public synchronized void counter(String name, String help, Sampler sampler) {
+      families.add(new Family(name, help, "counter", sampler));
+   }
+
+   /** Registers and returns a counter split by one label. */
+   public synchronized LabeledCounter counter(String name, String help, String label) {
+      LabeledCounter counter = new LabeledCounter(label);
+      families.add(new Family(name, help, "counter", counter::sample));
+      return counter;
+   }
+
+   public synchronized void gauge(String name, String help, Sampler sampler) {
+      families.add(new Family(name, help, "gauge", sampler));
+   }
+
+   public void gauge(String name, String help, DoubleSupplier value) {
+      gauge(name, help, samples -> samples.add(value.getAsDouble()));
+   }
+
+   /** Exports a latency histogram as a summary in seconds, with p50, p99 and p99.9. */
+   public synchronized void summary(String name, String help, LatencyHistogram histogram) {
+      families.add(new Family(name, help, "summary", samples -> {
+         samples.add(histogram.percentile(50) / 1e9, "quantile", "0.5");
+         samples.add(histogram.percentile(99) / 1e9, "quantile", "0.99");
+         samples.add(histogram.percentile(99.9) / 1e9, "quantile", "0.999");
+         samples.addSuffixed("_sum", histogram.getSum() / 1e9);
+         samples.addSuffixed("_count", histogram.getCount());
+      }));
+   }
+
+   /** Every registered family in the Prometheus text format. */
+   public synchronized String scrape() {
+      StringBuilder out = new StringBuilder();
+      for (Family family : families) {
+         out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+         out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+         family.sampler.sample(new Samples(out, family.name));
+      }
+      return out.toString();
+   }
+
+   /**
+    * Serves {@link #PATH} on the loopback interface. Metrics are for a
+    * local scraper (or a proxy in front of it), not for the whole network.
+    */
+   public synchronized void startHttp(int port) throws IOException {
+      httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      httpServer.createContext(PATH, exchange -> {
+         byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+         exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+         exchange.sendResponseHeaders(200, body.length);
+         try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+         }
+      });
+      httpServer.start();
+      System.out.println("Metrics: http://" + InetAddress.getLoopbackAddress().getHostAddress()
+            + ":" + port + PATH);
+   } // startHttp
+
+   public synchronized void stopHttp() {
+      if (httpServer != null) {
+         httpServer.stop(0);
+         httpServer = null;
+      }
+   }
+
+   private static String format(double value) {
+      if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+         return Long.toString((long) value);
+      }
+      return Double.toString(value); // scrapers accept the 1.0E-4 form
+   }
+
+   private static String escape(String labelValue) {
+      return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+   }
+}
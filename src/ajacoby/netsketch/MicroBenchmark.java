@@ -0,0 +1,132 @@
+package ajacoby.netsketch;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Small JMH-style harness for the benchmark mains in this package.
+ * <p>
+ * Each benchmark gets warmup iterations (discarded, so the JIT has
+ * settled) and then timed iterations of a fixed length. Operations run
+ * in batches between clock reads, and their results are folded into a
+ * sink, so neither timing nor dead-code elimination skews short
+ * operations much. Allocation is read from the thread's allocation
+ * counter, which the JVM keeps anyway.
+ * <p>
+ * This is no substitute for JMH's forking and blackholes, but it needs
+ * nothing but the JDK and is good enough to compare two approaches run
+ * side by side in the same JVM.
+ */
+final class MicroBenchmark {
+   /** One benchmarked operation; the result only feeds the sink. */
+   interface Op {
+      int run() throws Exception;
+   }
+
+   /** Most operations run between clock reads. */
+   private static final int MAX_BATCH = 256;
+   private static final com.sun.management.ThreadMXBean THREADS =
+         (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+   /** Keeps benchmark results alive. */
+   private static volatile int sink;
+
+   private final int warmupIterations;
+   private final int iterations;
+   private final long iterationNanos;
+   /** Operations between clock reads; grows while batches are short. */
+   private int batch;
+
+   MicroBenchmark(int warmupIterations, int iterations, long iterationMillis) {
+      this.warmupIterations = warmupIterations;
+      this.iterations = iterations;
+      this.iterationNanos = TimeUnit.MILLISECONDS.toNanos(iterationMillis);
+   }
+
+   /** Numbers from one benchmark. */
+   static final class Result {
+      final String name;
+      final double opsPerSec;
+      /** Standard deviation of ops/s across the timed iterations. */
+      final double opsPerSecError;
+      final double allocBytesPerOp;
+      /** Bytes produced per operation, or -1 if not measured. */
+      final double bytesPerOp;
+
+      Result(String name, double opsPerSec, double opsPerSecError,
+             double allocBytesPerOp, double bytesPerOp) {
+         this.name = name;
+         this.opsPerSec = opsPerSec;
+         this.opsPerSecError = opsPerSecError;
+         this.allocBytesPerOp = allocBytesPerOp;
+         this.bytesPerOp = bytesPerOp;
+      }
+
+      static String header() {
+         return String.format(Locale.ROOT, "%-36s %14s %10s %12s %12s",
+               "Benchmark", "ops/s", "+-", "alloc B/op", "bytes/op");
+      }
+
+      @Override
+      public String toString() {
+         return String.format(Locale.ROOT, "%-36s %14.0f %10.0f %12.1f %12s",
+               name, opsPerSec, opsPerSecError, allocBytesPerOp,
+               (bytesPerOp < 0) ? "-" : String.format(Locale.ROOT, "%.1f", bytesPerOp));
+      }
+   } // Result
+
+   /**
+    * Runs the warmup and timed iterations of one benchmark.
+    *
+    * @param bytes running count of bytes the operation produces (such as
+    *        bytes written to a stream), or null
+    */
+   Result run(String name, Op op, LongSupplier bytes) throws Exception {
+      batch = 1;
+      for (int i = 0; i < warmupIterations; i++) {
+         iteration(op);
+      }
+      double[] rates = new double[iterations];
+      long totalOps = 0;
+      long allocStart = THREADS.getCurrentThreadAllocatedBytes();
+      long bytesStart = (bytes == null) ? 0 : bytes.getAsLong();
+      for (int i = 0; i < iterations; i++) {
+         long start = System.nanoTime();
+         long ops = iteration(op);
+         rates[i] = ops / ((System.nanoTime() - start) / 1e9);
+         totalOps += ops;
+      }
+      // The clock reads and rates array are noise next to millions of ops.
+      double alloc = (double) (THREADS.getCurrentThreadAllocatedBytes() - allocStart) / totalOps;
+      double bytesPerOp = (bytes == null) ? -1 : (double) (bytes.getAsLong() - bytesStart) / totalOps;
+      double mean = 0;
+      for (double rate : rates) mean += rate / iterations;
+      double variance = 0;
+      for (double rate : rates) variance += (rate - mean) * (rate - mean) / iterations;
+      return new Result(name, mean, Math.sqrt(variance), alloc, bytesPerOp);
+   } // run
+
+   /** Runs batches of the operation until the iteration time is up. */
+   private long iteration(Op op) throws Exception {
+      long deadline = System.nanoTime() + iterationNanos;
+      long ops = 0;
+      int acc = 0;
+      long now = System.nanoTime();
+      do {
+         long batchStart = now;
+         for (int i = 0; i < batch; i++) {
+            acc += op.run();
+         }
+         ops += batch;
+         now = System.nanoTime();
+         // Slow operations (like a full-canvas copy) keep small batches,
+         // so an iteration doesn't overrun by a whole batch.
+         if (batch < MAX_BATCH && now - batchStart < iterationNanos / 1000) {
+            batch *= 2;
+         }
+      } while (now < deadline);
+      sink = acc;
+      return ops;
+   }
+}
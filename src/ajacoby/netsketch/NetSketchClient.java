@@ -11,15 +11,32 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Connects to NetSketchServer to allow user to draw on shared canvas.
@@ -30,14 +47,133 @@ import java.util.Scanner;
  */
 public class NetSketchClient implements Runnable {
    public static final String CONNECT_PREFIX = "NetSketchClient connect: ";
+   /** Events waiting for the network writer; beyond this, Swing-thread sends are dropped. */
+   public static final int OUTBOX_CAPACITY = 4096;
+   /** How often received events are drawn and presented (~60 fps). */
+   public static final int FRAME_MILLIS = 16;
+   /** Drawing time allowed per frame, so a big replay doesn't freeze the UI. */
+   private static final long RENDER_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+   /** How far, in pixels, a simplified stroke may stray from what was drawn. */
+   public static final double SIMPLIFY_TOLERANCE_PIXELS = 1.0;
    private static int numClients = 0;
 
-   private Socket clientSocket;
-   private ObjectOutputStream out;
-   private ObjectInputStream in;
+   /** An event waiting in the outbox, stamped so we can tell how long it waited. */
+   private static class Outgoing {
+      final DrawEvent de;
+      final long queuedAt;
+      /** Whether this segment already replaces several, so merging it again could stray too far. */
+      final boolean isMerged;
+
+      Outgoing(DrawEvent de) {
+         this(de, System.nanoTime(), false);
+      }
+
+      Outgoing(DrawEvent de, long queuedAt, boolean isMerged) {
+         this.de = de;
+         this.queuedAt = queuedAt;
+         this.isMerged = isMerged;
+      }
+   }
+
+   /** One connection to the server; replaced as a whole when reconnecting. */
+   private static class Connection {
+      final Socket socket;
+      final OutputStream out;
+      final DataInputStream in;
+      /** Both null unless the server agreed to compress this connection. */
+      final Deflater deflater;
+      final Inflater inflater;
+      /** Board the server put us on. */
+      final String board;
+      /** Whether the server picks up after the last event we had, rather than replaying everything. */
+      final boolean resumed;
+      /** Where to send cursor and preview datagrams; null if the server offered none. */
+      final InetSocketAddress udpServer;
+      final long udpToken;
+      /** Credit for our events, and credit we owe the server; both null without flow control. */
+      final FlowControl.Sender upstream;
+      final FlowControl.Receiver downstream;
+
+      Connection(Socket socket, OutputStream out, DataInputStream in,
+                 Deflater deflater, Inflater inflater, String board, boolean resumed,
+                 InetSocketAddress udpServer, long udpToken, long serverWindow) {
+         this.socket = socket;
+         this.out = out;
+         this.in = in;
+         this.deflater = deflater;
+         this.inflater = inflater;
+         this.board = board;
+         this.resumed = resumed;
+         this.udpServer = udpServer;
+         this.udpToken = udpToken;
+         if (serverWindow > 0) {
+            upstream = new FlowControl.Sender(serverWindow);
+            downstream = new FlowControl.Receiver(FlowControl.CLIENT_WINDOW);
+         } else {
+            upstream = null;
+            downstream = null;
+         }
+      }
+
+      void close() {
+         try {
+            socket.close();
+         } catch (IOException e) {
+            System.err.println("Unable to close socket: " + e.getMessage());
+         }
+      }
+   } // Connection
+
+   /** Longest wait between attempts to reconnect. */
+   private static final long MAX_RECONNECT_MILLIS = 5000;
+   /** Servers to try in turn, such as a primary and its standby. */
+   private final String[] hosts;
+   private final int[] ports;
+   /** Index of the server tried last; only used under the client's lock. */
+   private int current = 0;
+   private final boolean compress;
+   /** Current connection; only replaced by reconnect(). */
+   private volatile Connection connection;
+   /** Epoch of the board's history we have; sequence numbers are only valid within it. */
+   private String epoch;
+   /** Only used by the network writer thread. */
+   private final DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+   /** Events queued by send() for the network writer thread. */
+   private final BlockingQueue<Outgoing> outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
+   // Outbox metrics
+   private final AtomicLong eventsSent = new AtomicLong();
+   private final AtomicLong eventsDropped = new AtomicLong();
+   /** Line segments saved by merging while out of credit. */
+   private final AtomicLong eventsMerged = new AtomicLong();
+   private final AtomicLong totalQueuedNanos = new AtomicLong();
+   private volatile long maxQueuedNanos = 0;
+   private volatile int maxOutboxDepth = 0;
+   /** Events received from the server, waiting for the next frame. */
+   private final ConcurrentLinkedQueue<DrawEvent> inbox = new ConcurrentLinkedQueue<>();
+   /**
+    * Put in the inbox by the client itself when a reconnect replays the
+    * board's history. It didn't come from the server, so drawing it
+    * earns the server no credit.
+    */
+   private final DrawEvent resetClear;
+   /** Presents a frame whenever anything was drawn since the last one. */
+   private Timer renderTimer;
+   /** Set when something was drawn but not yet shown. */
+   private volatile boolean needsShow = false;
+   /** Whether outgoing events carry a timestamp (set from the UI). */
+   private volatile boolean stampEvents = false;
+   /** Sender's timestamp to received here; only for stamped events. */
+   private final LatencyHistogram deliveredLatency = new LatencyHistogram("delivered");
+   /** Sender's timestamp to drawn on our canvas; only for stamped events. */
+   private final LatencyHistogram displayedLatency = new LatencyHistogram("displayed");
+   private final DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
    private String name;
+   /** Board we joined, as confirmed by the server. */
+   private String board;
    /** Draw object works like a canvas embedded in our JFrame window. */
    private Draw draw;
+   /** Our mouse handling, called on Draw's coalescing dispatcher thread. */
+   private DrawListener mouseListener;
    /** Window with draw canvas and controls. */
    private JFrame window;
    /** Each client starts with a random color. */
@@ -46,20 +182,80 @@ public class NetSketchClient implements Runnable {
    private double radius = 0.005;
    /** Last mouse coordinate for drag operations. */
    private Point2D lastPoint;
+   /** End of the last segment actually sent for the current stroke. */
+   private Point2D lastSentPoint;
+   /** Cursor and stroke previews over UDP; null if no datagram socket could be opened. */
+   private EphemeralClient ephemeral;
+   /** Tail of the stroke in progress, for previews while it is being simplified. */
+   private final double[] strokeXs = new double[2 * Ephemeral.MAX_PREVIEW_POINTS];
+   private final double[] strokeYs = new double[2 * Ephemeral.MAX_PREVIEW_POINTS];
+   private int strokeLength = 0;
+   /** Whether new strokes are simplified before sending (set from the UI). */
+   private volatile boolean simplifyStrokes = false;
+   /** Whether the stroke in progress is being simplified. */
+   private boolean isSimplifyingStroke = false;
+   private StrokeSimplifier simplifier;
    /** Flag to shut down. */
-   private boolean isClientRunning = true;
+   private volatile boolean isClientRunning = true;
 
    public NetSketchClient(String host, String name) {
+      this(host, name, false);
+   }
+
+   /**
+    * @param compress ask the server to deflate traffic on this connection
+    */
+   public NetSketchClient(String host, String name, boolean compress) {
+      this(host, name, compress, Handshake.DEFAULT_BOARD);
+   }
+
+   /**
+    * @param compress ask the server to deflate traffic on this connection
+    * @param board name of the board to draw on; created if nobody is on it yet
+    * @throws IllegalArgumentException if the name contains a newline or {@code '='}
+    */
+   public NetSketchClient(String host, String name, boolean compress, String board) {
+      if (!Handshake.isValidName(name)) {
+         throw new IllegalArgumentException("Name can't contain a newline or '=': " + name);
+      }
       this.name = name;
-      System.out.println("NetSketchClient connecting to " + host + ":" + NetSketchServer.PORT);
+      resetClear = new DrawEvent(name, DrawEvent.DrawEventType.CLEAR);
+      // host may be host:port, e.g. to reach one of several local servers,
+      // and may list several servers, e.g. a primary and its standby
+      String[] addresses = host.split(",");
+      hosts = new String[addresses.length];
+      ports = new int[addresses.length];
+      for (int i = 0; i < addresses.length; i++) {
+         String address = addresses[i].strip();
+         int colon = address.lastIndexOf(':');
+         if (colon > 0 && address.indexOf(':') == colon) {
+            hosts[i] = address.substring(0, colon);
+            ports[i] = Integer.parseInt(address.substring(colon + 1));
+         } else {
+            hosts[i] = address;
+            ports[i] = NetSketchServer.PORT;
+         }
+      }
+      this.compress = compress;
+      this.board = board;
       // Network setup
+      decoder.setCreditListener(frames -> {
+         FlowControl.Sender upstream = connection.upstream; // only read on the reader thread, which reconnects
+         if (upstream != null) {
+            upstream.grant(frames);
+         }
+      });
       try {
-         clientSocket = new Socket(host, NetSketchServer.PORT);
-         System.out.println("Connected!");
-         out = new ObjectOutputStream(clientSocket.getOutputStream());
-         in = new ObjectInputStream(clientSocket.getInputStream());
-         out.writeObject(CONNECT_PREFIX + name);
-         out.flush();
+         ephemeral = new EphemeralClient();
+      } catch (IOException e) {
+         System.err.println("No cursor sharing: " + e.getMessage());
+      }
+      try {
+         connection = connectAny();
+         this.board = connection.board;
+         Thread writerThread = new Thread(this::writeLoop, "NetSketchClient-writer-" + name);
+         writerThread.setDaemon(true);
+         writerThread.start();
       } catch (UnknownHostException e) {
          throw new RuntimeException(e);
       } catch (IOException e) {
@@ -67,27 +263,168 @@ public class NetSketchClient implements Runnable {
       }
       initDraw();
       initWindow();
+      renderTimer = new Timer(FRAME_MILLIS, e -> renderFrame());
+      renderTimer.start();
       numClients++;
    } // NetSketchClient()
 
+   /** Tries each server once, starting with the current one. */
+   private synchronized Connection connectAny() throws IOException {
+      IOException failure = null;
+      for (int i = 0; i < hosts.length; i++) {
+         try {
+            return connect();
+         } catch (IOException e) {
+            System.err.println("Unable to connect to " + hosts[current] + ":" + ports[current]
+                  + " (" + e.getMessage() + ")");
+            failure = e;
+            current = (current + 1) % hosts.length;
+         }
+      }
+      throw failure;
+   } // connectAny
+
+   /**
+    * Connects to the current server and does the handshake for
+    * {@link #board}, asking to resume after the last event decoded so far.
+    */
+   private Connection connect() throws IOException {
+      System.out.println("NetSketchClient connecting to " + hosts[current] + ":" + ports[current]);
+      Socket socket = new Socket(hosts[current], ports[current]);
+      try {
+         System.out.println("Connected!");
+         Handshake request = new Handshake(name).with(Handshake.BOARD, board);
+         if (compress) {
+            request.with(Handshake.COMPRESS, Handshake.DEFLATE);
+         }
+         if (epoch != null && decoder.lastSeq() >= 0) {
+            request.with(Handshake.EPOCH, epoch).with(Handshake.RESUME, Long.toString(decoder.lastSeq()));
+         }
+         if (ephemeral != null) {
+            request.with(Handshake.UDP, "true");
+         }
+         request.with(Handshake.CREDIT, Long.toString(FlowControl.CLIENT_WINDOW));
+         request.writeConnect(new DataOutputStream(socket.getOutputStream()));
+         Handshake reply = Handshake.readAccept(new DataInputStream(socket.getInputStream()));
+         System.out.println("Drawing on board " + reply.getBoard());
+         epoch = reply.get(Handshake.EPOCH);
+         boolean resumed = reply.get(Handshake.RESUME) != null;
+         if (resumed) {
+            System.out.println("Resuming after event " + reply.get(Handshake.RESUME));
+         }
+         InetSocketAddress udpServer = null;
+         long udpToken = 0;
+         if (reply.get(Handshake.UDP) != null && reply.get(Handshake.TOKEN) != null) {
+            udpServer = new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(reply.get(Handshake.UDP)));
+            udpToken = Long.parseUnsignedLong(reply.get(Handshake.TOKEN), 16);
+         }
+         if (ephemeral != null) {
+            ephemeral.connectedTo(udpServer, udpToken);
+         }
+         String credit = reply.get(Handshake.CREDIT);
+         long serverWindow = (credit != null) ? FlowControl.parseWindow(credit) : 0;
+         if (serverWindow < 0) {
+            throw new IOException("Bad credit window from server: " + credit);
+         }
+         if (credit != null) {
+            System.out.println("Flow control enabled");
+         }
+         OutputStream rawOut = socket.getOutputStream();
+         InputStream rawIn = socket.getInputStream();
+         Deflater deflater = null;
+         Inflater inflater = null;
+         if (reply.has(Handshake.COMPRESS, Handshake.DEFLATE)) {
+            System.out.println("Compression enabled");
+            deflater = Compression.newDeflater();
+            inflater = new Inflater();
+            rawOut = new DeflaterOutputStream(rawOut, deflater, true);
+            rawIn = new InflaterInputStream(rawIn, inflater);
+         }
+         return new Connection(socket, new BufferedOutputStream(rawOut),
+               new DataInputStream(new BufferedInputStream(rawIn)), deflater, inflater, reply.getBoard(), resumed,
+               udpServer, udpToken, serverWindow);
+      } catch (IOException e) {
+         socket.close();
+         throw e;
+      }
+   } // connect
+
+   /**
+    * Replaces a failed connection, going round the servers with backoff
+    * until one answers or the client shuts down. Only the reader thread
+    * reconnects, since it knows the last event it decoded; the server
+    * either resumes after that event or replays the board's whole
+    * history, which is how a board that moved to another server (see
+    * {@link NetSketchRouter}) or a standby that took over is picked up.
+    *
+    * @return the new connection, or null if the client is shutting down
+    */
+   private synchronized Connection reconnect(Connection failed) throws InterruptedException {
+      failed.close();
+      long backoff = 250;
+      while (isClientRunning) {
+         try {
+            connection = connectAny();
+            notifyAll();
+            return connection;
+         } catch (IOException e) {
+            System.err.println("Reconnecting failed; retrying in " + backoff + " ms");
+            wait(backoff); // lets the writer see we are still at it
+            backoff = Math.min(backoff * 2, MAX_RECONNECT_MILLIS);
+         }
+      }
+      return null;
+   } // reconnect
+
+   /**
+    * Closes a connection the writer found broken and waits for the reader
+    * thread to replace it.
+    *
+    * @return the new connection, or null if the client is shutting down
+    */
+   private synchronized Connection awaitReconnect(Connection failed) throws InterruptedException {
+      failed.close();
+      while (connection == failed && isClientRunning) {
+         wait(100);
+      }
+      return isClientRunning ? connection : null;
+   }
+
    private void initDraw() {
       draw = new Draw();
       // Hide the default window since we'll embed it in our own
 
-      draw.addListener(new DrawListener() {
+      // Everything is presented once per frame by renderFrame().
+      draw.enableDoubleBuffering();
+      double canvasPixels = draw.getJLabel().getIcon().getIconWidth();
+      simplifier = new StrokeSimplifier(SIMPLIFY_TOLERANCE_PIXELS / canvasPixels);
+
+      mouseListener = new DrawListener() {
+         @Override public void mouseMoved(double x, double y) {
+            if (ephemeral != null) {
+               ephemeral.moveCursor(x, y);
+            }
+         }
+
          @Override public void mouseDragged(double x, double y) {
-            Point2D pt2 = new Point2D.Double(x, y);
-            if (lastPoint != null) {
-               DrawEvent de = new DrawEvent(name,
-                     lastPoint, pt2, color, radius,
-                     DrawEvent.DrawEventType.LINE);
-               de.draw(draw);
-               send(de);
+            dragTo(x, y, true);
+         }
+
+         @Override public void mouseDragged(double[] x, double[] y) {
+            // The path that piled up while we were busy: every point is
+            // drawn and sent, but the cursor and preview only go out once.
+            for (int i = 0; i < x.length; i++) {
+               dragTo(x[i], y[i], i == x.length - 1);
             }
-            lastPoint = pt2;
          }
 
          @Override public void mouseReleased(double x, double y) {
+            if (lastPoint != null && isSimplifyingStroke) {
+               sendVertices(simplifier.end());
+               if (ephemeral != null) {
+                  ephemeral.sendPreview(color, radius, strokeXs, strokeYs, 0);
+               }
+            }
             lastPoint = null;
          }
 
@@ -97,19 +434,95 @@ public class NetSketchClient implements Runnable {
             DrawEvent de = new DrawEvent(name,
                   pt1, pt2, color, radius,
                   DrawEvent.DrawEventType.POINT);
-            de.draw(draw);
+            drawLocal(de);
             send(de);
          }
-      });
+      };
+      draw.addListener(mouseListener, true); // coalesce drags so a slow send never backs up the Swing thread
+   }
+
+   /**
+    * Extends the stroke to the mouse position; only the latest of a
+    * batch of drag points updates the cursor and preview.
+    */
+   private void dragTo(double x, double y, boolean isLatest) {
+      Point2D pt2 = new Point2D.Double(x, y);
+      if (ephemeral != null && isLatest) {
+         ephemeral.moveCursor(x, y);
+      }
+      if (lastPoint != null) {
+         DrawEvent de = new DrawEvent(name,
+               lastPoint, pt2, color, radius,
+               DrawEvent.DrawEventType.LINE);
+         drawLocal(de);
+         if (isSimplifyingStroke) {
+            sendVertices(simplifier.add(pt2));
+            preview(pt2, isLatest);
+         } else {
+            send(de);
+         }
+      } else {
+         // Stroke starts; its preview always stays full resolution.
+         isSimplifyingStroke = simplifyStrokes;
+         lastSentPoint = pt2;
+         if (isSimplifyingStroke) {
+            simplifier.begin(pt2);
+            strokeLength = 0;
+            preview(pt2, isLatest);
+         }
+      }
+      lastPoint = pt2;
+   }
+
+   /**
+    * Shows others the raw stroke so far, since the simplifier holds back
+    * its vertices until it knows where the stroke is going.
+    */
+   private void preview(Point2D pt, boolean isLatest) {
+      if (ephemeral == null) return;
+      if (strokeLength == strokeXs.length) {
+         // Only the tail is ever sent; keep it and make room.
+         int keep = Ephemeral.MAX_PREVIEW_POINTS;
+         System.arraycopy(strokeXs, strokeLength - keep, strokeXs, 0, keep);
+         System.arraycopy(strokeYs, strokeLength - keep, strokeYs, 0, keep);
+         strokeLength = keep;
+      }
+      strokeXs[strokeLength] = pt.getX();
+      strokeYs[strokeLength] = pt.getY();
+      strokeLength++;
+      if (isLatest) {
+         ephemeral.sendPreview(color, radius, strokeXs, strokeYs, strokeLength);
+      }
+   }
+
+   /** Sends the simplifier's released vertices as consecutive LINE segments. */
+   private void sendVertices(List<Point2D> vertices) {
+      for (Point2D vertex : vertices) {
+         send(new DrawEvent(name, lastSentPoint, vertex, color, radius,
+               DrawEvent.DrawEventType.LINE));
+         lastSentPoint = vertex;
+      }
    }
 
    private void initWindow() {
-      window = new JFrame("NetSketch Client: " + name);
+      window = new JFrame("NetSketch Client: " + name + " @ " + board);
       window.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
       window.addWindowListener(new WindowAdapter() {
          @Override
          public void windowClosed(WindowEvent e) {
             super.windowClosed(e);
+            isClientRunning = false;
+            draw.removeListener(mouseListener); // stops its dispatcher thread
+            connection.close();
+            if (ephemeral != null) {
+               ephemeral.close();
+            }
+            printCompressionReport();
+            printOutboxReport();
+            printFlowReport();
+            System.out.println(latencyReport());
+            System.out.println(simplifier.report(draw.getJLabel().getIcon().getIconWidth()));
+            renderTimer.stop();
             numClients--;
             if (numClients == 0) {
                System.exit(0);
@@ -142,6 +555,33 @@ public class NetSketchClient implements Runnable {
       radiusSliderBox.add(radiusSlider);
       radiusSliderBox.add(Box.createHorizontalGlue());
       controlBox.add(radiusSliderBox);
+      // Cursor sharing rate label and slider
+      if (ephemeral != null) {
+         Box cursorSliderBox = Box.createHorizontalBox();
+         cursorSliderBox.add(Box.createHorizontalGlue());
+         JLabel cursorLabel = new JLabel("Cursor: " + EphemeralClient.DEFAULT_CURSOR_RATE + "/s");
+         cursorSliderBox.add(cursorLabel);
+         JSlider cursorSlider = new JSlider(0, 60, EphemeralClient.DEFAULT_CURSOR_RATE);
+         cursorSlider.addChangeListener(e -> {
+            int rate = cursorSlider.getValue();
+            cursorLabel.setText(rate > 0 ? "Cursor: " + rate + "/s" : "Cursor: off");
+            ephemeral.setCursorRate(rate);
+         });
+         cursorSliderBox.add(cursorSlider);
+         cursorSliderBox.add(Box.createHorizontalGlue());
+         controlBox.add(cursorSliderBox);
+      }
+      // Simplify strokes before sending them
+      JCheckBox simplifyBox = new JCheckBox("Simplify strokes (" + SIMPLIFY_TOLERANCE_PIXELS + " px)");
+      simplifyBox.addActionListener(e -> simplifyStrokes = simplifyBox.isSelected());
+      controlBox.add(simplifyBox);
+      // End-to-end latency measurement
+      JCheckBox stampBox = new JCheckBox("Timestamp events");
+      stampBox.addActionListener(e -> stampEvents = stampBox.isSelected());
+      controlBox.add(stampBox);
+      JButton latencyBtn = new JButton("Latency report");
+      latencyBtn.addActionListener(e -> System.out.println(latencyReport()));
+      controlBox.add(latencyBtn);
       // Clear Button
       JButton clearBtn = new JButton("Clear!");
       clearBtn.addActionListener(new ActionListener() {
@@ -152,6 +592,11 @@ public class NetSketchClient implements Runnable {
       });
       controlBox.add(clearBtn);
       controlBox.add(Box.createVerticalGlue());
+      // Other clients' cursors and previews, drawn over everything
+      if (ephemeral != null) {
+         window.setGlassPane(ephemeral.getOverlay(draw.getJLabel()));
+         window.getGlassPane().setVisible(true);
+      }
       // Finalize
       window.pack();
       int offset = 30 * numClients;
@@ -167,26 +612,322 @@ public class NetSketchClient implements Runnable {
    private void clearCanvas() {
       DrawEvent de = new DrawEvent(name,
             DrawEvent.DrawEventType.CLEAR);
-      de.draw(draw);
+      drawLocal(de);
       send(de);
    }
 
+   private void printCompressionReport() {
+      Connection conn = connection;
+      if (conn.deflater != null) {
+         System.out.println(Compression.report("Outbound compression for " + name,
+               conn.deflater.getBytesRead(), conn.deflater.getBytesWritten(), -1));
+         System.out.println(Compression.report("Inbound compression for " + name,
+               conn.inflater.getBytesWritten(), conn.inflater.getBytesRead(), -1));
+      }
+   }
+
+   /** Percentiles for stamped events from any client, including our own echoes. */
+   public String latencyReport() {
+      return "Client latency for " + name + ":\n"
+            + "  " + deliveredLatency.summary() + "\n"
+            + "  " + displayedLatency.summary();
+   }
+
+   private void printOutboxReport() {
+      long sent = eventsSent.get();
+      double avgMicros = (sent == 0) ? 0 : totalQueuedNanos.get() / 1e3 / sent;
+      System.out.printf(Locale.ROOT,
+            "Outbox for %s: %d sent, %d dropped, depth %d (max %d), queued avg %.1f us, max %.1f us%n",
+            name, sent, eventsDropped.get(), outbox.size(), maxOutboxDepth,
+            avgMicros, maxQueuedNanos / 1e3);
+   }
+
+   private void printFlowReport() {
+      FlowControl.Sender upstream = connection.upstream;
+      if (upstream == null) return;
+      System.out.printf(Locale.ROOT, "Flow control for %s: %d stall(s), %.1f ms waiting for credit, "
+            + "%d segment(s) merged, %d event(s) granted%n",
+            name, upstream.getStalls(), upstream.getStalledSeconds() * 1e3, eventsMerged.get(),
+            FlowControl.CLIENT_WINDOW + connection.downstream.getGranted());
+   }
+
+   /**
+    * Queues the event for the network writer thread. Never blocks the
+    * Swing event thread: if the outbox is full there, the event is dropped
+    * (and counted), except for a CLEAR, which makes room by dropping the
+    * oldest queued events - it would wipe them anyway. Other threads,
+    * like the stress tester, wait for room.
+    */
    private void send(DrawEvent de) {
-      try {
-         out.reset();
-         out.writeObject(de);
-         out.flush();
-      } catch (IOException e) {
-         throw new RuntimeException(e);
+      if (stampEvents) {
+         de.setTimestamp(LatencyHistogram.epochMicros());
+      }
+      Outgoing outgoing = new Outgoing(de);
+      if (SwingUtilities.isEventDispatchThread()) {
+         if (de.getType() == DrawEvent.DrawEventType.CLEAR) {
+            // Our canvas is already clear; losing this would leave everyone else out of step
+            while (!outbox.offer(outgoing)) {
+               if (outbox.poll() != null) eventsDropped.incrementAndGet();
+            }
+         } else if (!outbox.offer(outgoing)) {
+            eventsDropped.incrementAndGet();
+            return;
+         }
+      } else {
+         try {
+            outbox.put(outgoing);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+      int depth = outbox.size();
+      if (depth > maxOutboxDepth) {
+         maxOutboxDepth = depth;
       }
    } // send
 
+   /**
+    * Network writer thread: drains the outbox in batches, encodes each
+    * event and flushes once per batch. A batch that fails to send is lost.
+    * <p>
+    * With flow control it sends no more events than the server has
+    * granted credit for. While it waits, events collect in the batch (up
+    * to {@link #OUTBOX_CAPACITY}, after which the outbox fills up) and
+    * are merged into longer segments where possible. It also grants the
+    * server credit for the events drawn since the last grant.
+    */
+   private void writeLoop() {
+      ArrayList<Outgoing> batch = new ArrayList<>();
+      Connection conn = connection;
+      try {
+         while (isClientRunning) {
+            if (batch.isEmpty()) {
+               Outgoing first = outbox.poll(FRAME_MILLIS, TimeUnit.MILLISECONDS);
+               if (first != null) batch.add(first);
+            }
+            outbox.drainTo(batch, OUTBOX_CAPACITY - batch.size());
+            if (conn != connection) { // the reader reconnected
+               conn = connection;
+               encoder.reset();
+            }
+            try {
+               grantCredit(conn);
+               if (batch.isEmpty()) continue;
+               int count = batch.size();
+               if (conn.upstream != null) {
+                  if (!conn.upstream.awaitCredit(FRAME_MILLIS)) continue; // still granting meanwhile
+                  long credit = conn.upstream.available();
+                  if (credit < batch.size()) {
+                     eventsMerged.addAndGet(mergeSegments(batch));
+                  }
+                  count = (int) Math.min(credit, batch.size());
+                  conn.upstream.spend(count);
+               }
+               List<Outgoing> sending = batch.subList(0, count);
+               writeBatch(sending, conn.out);
+               sending.clear();
+            } catch (IOException e) {
+               System.err.println("Lost connection to server: " + e.getMessage());
+               eventsDropped.addAndGet(batch.size());
+               batch.clear();
+               conn = awaitReconnect(conn);
+               if (conn == null) break;
+               encoder.reset();
+            }
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   } // writeLoop
+
+   /** Sends the server a CREDIT record once enough events have been drawn. */
+   private void grantCredit(Connection conn) throws IOException {
+      if (conn.downstream == null) return;
+      long credit = conn.downstream.takeGrant();
+      if (credit == 0) return;
+      Frame frame = DrawEventCodec.credit(credit);
+      ByteBuffer bytes = frame.view();
+      byte[] record = new byte[bytes.remaining()];
+      bytes.get(record);
+      frame.release();
+      conn.out.write(record);
+      conn.out.flush();
+   }
+
+   /**
+    * Merges each pair of connected LINE segments whose shared point is
+    * within the simplification tolerance of the segment joining their
+    * ends. A merged segment isn't merged again, so no point strays
+    * further than the tolerance.
+    *
+    * @return number of events saved
+    */
+   private int mergeSegments(List<Outgoing> batch) {
+      double tolerance = SIMPLIFY_TOLERANCE_PIXELS / draw.getJLabel().getIcon().getIconWidth();
+      int kept = 0;
+      for (Outgoing next : batch) {
+         Outgoing prev = (kept > 0) ? batch.get(kept - 1) : null;
+         if (prev != null && canMerge(prev, next, tolerance)) {
+            DrawEvent de = new DrawEvent(prev.de.getSource(), prev.de.getPoint1(), next.de.getPoint2(),
+                  prev.de.getColor(), prev.de.getRadius(), DrawEvent.DrawEventType.LINE);
+            de.setTimestamp(prev.de.getTimestamp());
+            batch.set(kept - 1, new Outgoing(de, prev.queuedAt, true));
+         } else {
+            batch.set(kept++, next);
+         }
+      }
+      int merged = batch.size() - kept;
+      batch.subList(kept, batch.size()).clear();
+      return merged;
+   } // mergeSegments
+
+   private static boolean canMerge(Outgoing prev, Outgoing next, double tolerance) {
+      DrawEvent a = prev.de;
+      DrawEvent b = next.de;
+      return !prev.isMerged && !next.isMerged
+            && a.getType() == DrawEvent.DrawEventType.LINE && b.getType() == DrawEvent.DrawEventType.LINE
+            && a.getPoint2().equals(b.getPoint1())
+            && a.getColor().equals(b.getColor()) && a.getRadius() == b.getRadius()
+            && Line2D.ptSegDist(a.getPoint1().getX(), a.getPoint1().getY(),
+                  b.getPoint2().getX(), b.getPoint2().getY(),
+                  a.getPoint2().getX(), a.getPoint2().getY()) <= tolerance;
+   }
+
+   private void writeBatch(List<Outgoing> batch, OutputStream out) throws IOException {
+      long now = System.nanoTime();
+      for (Outgoing outgoing : batch) {
+         long queued = now - outgoing.queuedAt;
+         totalQueuedNanos.addAndGet(queued);
+         if (queued > maxQueuedNanos) {
+            maxQueuedNanos = queued;
+         }
+         PipelineEvents.ClientSend sendEvent = new PipelineEvents.ClientSend();
+         sendEvent.begin();
+         int bytes = encoder.write(outgoing.de, out);
+         sendEvent.end();
+         if (sendEvent.shouldCommit()) {
+            sendEvent.describe(outgoing.de);
+            sendEvent.bytes = bytes;
+            sendEvent.queued = queued;
+            sendEvent.commit();
+         }
+      }
+      out.flush();
+      eventsSent.addAndGet(batch.size());
+   } // writeBatch
+
+   /** Draws locally; the result appears on the next frame. */
+   private void drawLocal(DrawEvent de) {
+      drawTraced(de, true);
+      needsShow = true;
+   }
+
+   /** Draws the event, reporting it to Flight Recorder if that is recording. */
+   private void drawTraced(DrawEvent de, boolean local) {
+      PipelineEvents.ClientDraw drawEvent = new PipelineEvents.ClientDraw();
+      drawEvent.begin();
+      de.draw(draw);
+      drawEvent.end();
+      if (drawEvent.shouldCommit()) {
+         drawEvent.describe(de);
+         drawEvent.local = local;
+         drawEvent.commit();
+      }
+   }
+
+   /**
+    * Runs on the Swing thread every {@link #FRAME_MILLIS}: draws as many
+    * received events as fit in the time budget, then shows the canvas
+    * once. A join replaying thousands of events repaints at most once
+    * per frame instead of once per event.
+    */
+   private void renderFrame() {
+      long deadline = System.nanoTime() + RENDER_BUDGET_NANOS;
+      DrawEvent de;
+      int drawn = 0;
+      while (System.nanoTime() < deadline && (de = inbox.poll()) != null) {
+         if (de != resetClear) {
+            drawn++;
+         }
+         drawTraced(de, false);
+         needsShow = true;
+         if (de.getTimestamp() != 0) {
+            displayedLatency.recordMicros(LatencyHistogram.epochMicros() - de.getTimestamp());
+         }
+      }
+      if (needsShow) {
+         needsShow = false;
+         synchronized (draw) { // listener callbacks draw from their own thread
+            draw.show();
+         }
+      }
+      FlowControl.Receiver downstream = connection.downstream;
+      if (downstream != null && drawn > 0) {
+         downstream.consumed(drawn); // the writer thread grants it
+      }
+      if (ephemeral != null) {
+         ephemeral.tick();
+      }
+   } // renderFrame
+
+   /**
+    * Reads events from the server and leaves them for renderFrame().
+    * Reconnects if the connection drops.
+    */
    public void run() {
       try {
          System.out.println("Waiting for updates from server...");
+         Connection conn = connection;
+         // Set after resuming until the first event arrives
+         boolean isResumeUnproven = false;
          while (isClientRunning) {
-            DrawEvent de = (DrawEvent) in.readObject();
-            de.draw(draw);
+            PipelineEvents.ClientReceive receiveEvent = new PipelineEvents.ClientReceive();
+            receiveEvent.begin();
+            DrawEvent de;
+            try {
+               de = decoder.read(conn.in);
+            } catch (IOException e) {
+               if (!isClientRunning) break;
+               System.err.println("Lost connection to server: " + e.getMessage());
+               decoder.rollback(); // it may have dropped part way through a frame
+               if (isResumeUnproven) {
+                  // Resuming failed before a single event; don't keep trying it
+                  decoder.forgetSequence();
+               }
+               conn = reconnect(conn);
+               if (conn == null) break;
+               isResumeUnproven = conn.resumed;
+               if (!conn.resumed) {
+                  // The new stream starts with the board's full history.
+                  decoder.reset();
+                  inbox.add(resetClear);
+               }
+               continue;
+            }
+            isResumeUnproven = false;
+            receiveEvent.end();
+            if (receiveEvent.shouldCommit()) {
+               receiveEvent.describe(de);
+               receiveEvent.bytes = decoder.lastBytes();
+               receiveEvent.commit();
+            }
+            if (de.getTimestamp() != 0) {
+               deliveredLatency.recordMicros(LatencyHistogram.epochMicros() - de.getTimestamp());
+            }
+            if (de.getType() == DrawEvent.DrawEventType.CLEAR) {
+               int discarded = 0;
+               DrawEvent pending;
+               while ((pending = inbox.poll()) != null) { // not drawn yet, and the CLEAR would wipe them anyway
+                  if (pending != resetClear) {
+                     discarded++;
+                  }
+               }
+               if (conn.downstream != null) {
+                  conn.downstream.consumed(discarded);
+               }
+            }
+            inbox.add(de);
          }
       } catch (Exception e) {
          throw new RuntimeException(e);
@@ -202,7 +943,7 @@ public class NetSketchClient implements Runnable {
                while (isClientRunning) {
                   Point2D.Double pt1 = new Point2D.Double(Math.random(), Math.random());
                   DrawEvent de = new DrawEvent(name, pt1, null, color, radius, DrawEvent.DrawEventType.POINT);
-                  de.draw(draw);
+                  drawLocal(de);
                   send(de);
                   Thread.sleep((long) (Math.random() * maxPause));
                }
@@ -223,14 +964,28 @@ public class NetSketchClient implements Runnable {
 
    /** Creates a new client and runs it in its own thread. */
    public static NetSketchClient buildClient(String ipAddr) {
+      return buildClient(ipAddr, false);
+   }
+
+   /** Creates a new client, optionally compressed, and runs it in its own thread. */
+   public static NetSketchClient buildClient(String ipAddr, boolean compress) {
+      return buildClient(ipAddr, compress, Handshake.DEFAULT_BOARD);
+   }
+
+   /** Creates a new client on the given board and runs it in its own thread. */
+   public static NetSketchClient buildClient(String ipAddr, boolean compress, String board) {
       String name = getRandomName();
       Scanner scan = new Scanner(System.in);
       System.out.print("Name? [" + name + "] ");
       String nameInput = scan.nextLine();
+      while (!Handshake.isValidName(nameInput)) {
+         System.out.print("Names can't contain '='. Name? [" + name + "] ");
+         nameInput = scan.nextLine();
+      }
       if (!nameInput.isBlank()) {
          name = nameInput;
       }
-      NetSketchClient client = new NetSketchClient(ipAddr, name);
+      NetSketchClient client = new NetSketchClient(ipAddr, name, compress, board);
       Thread clientThread = new Thread(client);
       clientThread.start();
       return client;
@@ -241,13 +996,26 @@ public class NetSketchClient implements Runnable {
     * uncover threading issues.
     */
    public static void stressTest(String ipAddr, long maxPause) {
+      stressTest(ipAddr, maxPause, false);
+   }
+
+   /**
+    * Like {@link #stressTest(String, long)}, with every tester optionally
+    * using a compressed connection.
+    */
+   public static void stressTest(String ipAddr, long maxPause, boolean compress) {
+      stressTest(ipAddr, maxPause, compress, Handshake.DEFAULT_BOARD);
+   }
+
+   /** Like {@link #stressTest(String, long, boolean)}, with every tester on the given board. */
+   public static void stressTest(String ipAddr, long maxPause, boolean compress, String board) {
       Scanner scan = new Scanner(System.in);
       System.out.print("Number of testers? [3] ");
       String numTestersResp = scan.nextLine();
       int numTesters = (numTestersResp.isBlank())? 3 : Integer.parseInt(numTestersResp);
       ArrayList<NetSketchClient> clients = new ArrayList<>();
       for (int i = 0; i < numTesters; i++) {
-         NetSketchClient client = buildClient(ipAddr);
+         NetSketchClient client = buildClient(ipAddr, compress, board);
          clients.add(client);
          client.stressTest(maxPause);
       }
@@ -261,10 +1029,15 @@ public class NetSketchClient implements Runnable {
       System.out.print("Stress test? [Y/n] ");
       String stressResp = scan.nextLine().toLowerCase();
       boolean doStressTest = stressResp.isBlank()? true : stressResp.startsWith("y");
+      System.out.print("Compress traffic? [y/N] ");
+      boolean compress = scan.nextLine().toLowerCase().startsWith("y");
+      System.out.print("Board? [" + Handshake.DEFAULT_BOARD + "] ");
+      String board = scan.nextLine();
+      board = board.isBlank() ? Handshake.DEFAULT_BOARD : board;
       if (doStressTest) {
-         stressTest(ipAddr, 50);
+         stressTest(ipAddr, 50, compress, board);
       } else {
-         buildClient(ipAddr);
+         buildClient(ipAddr, compress, board);
       }
    }
 
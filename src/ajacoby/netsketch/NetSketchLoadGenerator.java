@@ -0,0 +1,539 @@
+package ajacoby.netsketch;
+
+import java.awt.Color;
+import java.awt.geom.Point2D;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load generator for NetSketchServer.
+ * <p>
+ * Connects many simulated drawers, spread over a few NIO selector
+ * threads, and has each one draw at a fixed rate following a stroke
+ * pattern. Every drawer also reads the full broadcast stream (as a real
+ * client must), and times how long its own events take to come back:
+ * that echo time is the server's receive-to-fan-out latency.
+ * <p>
+ * Arguments are {@code key=value} pairs, for example
+ * {@code java ajacoby.netsketch.NetSketchLoadGenerator drawers=2000 rate=20 seconds=60}.
+ * See {@link #DEFAULTS} for the full list. Results go to stdout (or
+ * {@code out=file}) as a single JSON object; progress goes to stderr.
+ */
+public class NetSketchLoadGenerator {
+   /** Every supported argument with its default value. */
+   public static final Map<String, String> DEFAULTS = Map.ofEntries(
+         Map.entry("host", "127.0.0.1"),
+         Map.entry("port", String.valueOf(NetSketchServer.PORT)),
+         Map.entry("drawers", "100"),        // simulated clients
+         Map.entry("boards", "1"),           // drawers are dealt out over this many boards
+         Map.entry("threads", "4"),          // selector threads
+         Map.entry("rate", "30"),            // events per second per drawer
+         Map.entry("pattern", "strokes"),    // points, strokes or scribble
+         Map.entry("strokeLength", "40"),    // LINE segments per stroke
+         Map.entry("clearEvery", "0"),       // each drawer sends a CLEAR every N events; 0 = never
+         Map.entry("stamp", "false"),        // timestamp events to time delivery to every drawer
+         Map.entry("seconds", "30"),         // measured run time
+         Map.entry("serverPid", ""),         // sample this process's CPU/memory, if local
+         Map.entry("out", "-"));             // JSON result file, or - for stdout
+
+   /** Stop queueing sends for a drawer whose socket has this much unsent. */
+   private static final int MAX_PENDING_BYTES = 64 * 1024;
+
+   private final Map<String, String> settings;
+   private final List<Worker> workers = new ArrayList<>();
+   private final AtomicLong eventsSent = new AtomicLong();
+   private final AtomicLong eventsReceived = new AtomicLong();
+   private final AtomicLong bytesSent = new AtomicLong();
+   private final AtomicLong bytesReceived = new AtomicLong();
+   private final AtomicLong sendsSkipped = new AtomicLong();
+   private final AtomicLong disconnects = new AtomicLong();
+   /** Send to echo received, for each drawer's own events. */
+   private final LatencyHistogram fanOutLatency = new LatencyHistogram("fan-out");
+   /**
+    * Sender's timestamp to received, for every drawer receiving a stamped
+    * event; needs the server's clock to match ours, so the same machine.
+    */
+   private final LatencyHistogram deliveryLatency = new LatencyHistogram("delivery");
+   private volatile boolean isRunning = true;
+   private final boolean isStamping;
+   private int connectFailures = 0;
+   private double connectSeconds = 0;
+
+   /** One of a drawer's events on its way to the server and back. */
+   private static final class Sent {
+      final long at;
+      /** Where the event ends, as the codec quantizes it; echoes are matched on it. */
+      final long end;
+
+      Sent(long at, DrawEvent de) {
+         this.at = at;
+         this.end = endOf(de);
+      }
+
+      /**
+       * The quantized end point: a merged segment (see
+       * {@link OverloadController}) ends where the last of the events
+       * merged into it did.
+       */
+      static long endOf(DrawEvent de) {
+         Point2D end = (de.getPoint2() != null) ? de.getPoint2() : de.getPoint1();
+         if (end == null) return Long.MIN_VALUE; // CLEAR
+         return ((long) DrawEventCodec.quantize(end.getX()) << 32)
+               | (DrawEventCodec.quantize(end.getY()) & 0xFFFFFFFFL);
+      }
+   } // Sent
+
+   /** One simulated client. */
+   private class Drawer {
+      final String name;
+      final SocketChannel channel;
+      final Random random;
+      final DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+      final DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
+      final ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+      final ByteBuffer out = ByteBuffer.allocate(MAX_PENDING_BYTES);
+      /** Our events that haven't come back yet, oldest first. */
+      final ArrayDeque<Sent> inFlight = new ArrayDeque<>();
+      final Color color;
+      long nextSendAt;
+      long eventCount = 0;
+      Point2D lastPoint;
+      int segmentsLeft = 0;
+      SelectionKey key;
+
+      Drawer(String name, SocketChannel channel, long seed) {
+         this.name = name;
+         this.channel = channel;
+         this.random = new Random(seed);
+         this.color = new Color(random.nextInt(0x1000000));
+      }
+
+      DrawEvent nextEvent() {
+         int clearEvery = intSetting("clearEvery");
+         if (clearEvery > 0 && eventCount % clearEvery == clearEvery - 1) {
+            lastPoint = null;
+            return new DrawEvent(name, DrawEvent.DrawEventType.CLEAR);
+         }
+         String pattern = settings.get("pattern");
+         if (pattern.equals("points")) {
+            Point2D pt = new Point2D.Double(random.nextDouble(), random.nextDouble());
+            return new DrawEvent(name, pt, null, color, 0.005, DrawEvent.DrawEventType.POINT);
+         }
+         // strokes: medium steps; scribble: long strokes of small steps
+         double step = pattern.equals("scribble") ? 0.004 : 0.015;
+         if (segmentsLeft == 0 || lastPoint == null) {
+            lastPoint = new Point2D.Double(random.nextDouble(), random.nextDouble());
+            segmentsLeft = intSetting("strokeLength") * (pattern.equals("scribble") ? 10 : 1);
+         }
+         double x = clamp(lastPoint.getX() + step * random.nextGaussian());
+         double y = clamp(lastPoint.getY() + step * random.nextGaussian());
+         Point2D pt = new Point2D.Double(x, y);
+         DrawEvent de = new DrawEvent(name, lastPoint, pt, color, 0.005, DrawEvent.DrawEventType.LINE);
+         lastPoint = pt;
+         segmentsLeft--;
+         return de;
+      }
+
+      void send(long now) throws IOException {
+         if (out.position() > MAX_PENDING_BYTES / 2) {
+            sendsSkipped.incrementAndGet(); // the server isn't keeping up with us
+            return;
+         }
+         DrawEvent de = nextEvent();
+         if (isStamping) {
+            de.setTimestamp(LatencyHistogram.epochMicros());
+         }
+         Frame frame = encoder.encode(de);
+         out.put(frame.view());
+         frame.release();
+         eventCount++;
+         inFlight.add(new Sent(now, de));
+         eventsSent.incrementAndGet();
+         flush();
+      }
+
+      void flush() throws IOException {
+         out.flip();
+         bytesSent.addAndGet(channel.write(out));
+         boolean isBackedUp = out.hasRemaining();
+         out.compact();
+         key.interestOps(isBackedUp ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      }
+
+      void read() throws IOException {
+         int n = channel.read(in);
+         if (n < 0) throw new IOException("server closed connection for " + name);
+         bytesReceived.addAndGet(n);
+         in.flip();
+         DrawEvent de;
+         long now = System.nanoTime();
+         while ((de = decoder.read(in)) != null) {
+            eventsReceived.incrementAndGet();
+            if (de.getSource().equals(name)) {
+               echoed(de, now);
+            }
+            if (de.getTimestamp() != 0) {
+               deliveryLatency.recordMicros(LatencyHistogram.epochMicros() - de.getTimestamp());
+            }
+         }
+         in.compact();
+      }
+
+      /**
+       * Times the sends an echo accounts for: the one it ends with and
+       * any before it, which the server merged into it. An echo that
+       * matches nothing in flight is not timed.
+       */
+      void echoed(DrawEvent de, long now) {
+         long end = Sent.endOf(de);
+         boolean isInFlight = false;
+         for (Sent sent : inFlight) {
+            if (sent.end == end) {
+               isInFlight = true;
+               break;
+            }
+         }
+         while (isInFlight) {
+            Sent sent = inFlight.poll();
+            fanOutLatency.record(now - sent.at);
+            isInFlight = sent.end != end;
+         }
+      }
+   } // Drawer
+
+   /** Selector thread driving a share of the drawers. */
+   private class Worker extends Thread {
+      final Selector selector;
+      final List<Drawer> drawers = new ArrayList<>();
+      final PriorityQueue<Drawer> schedule =
+            new PriorityQueue<>((a, b) -> Long.compare(a.nextSendAt, b.nextSendAt));
+
+      Worker(int id) throws IOException {
+         super("LoadWorker-" + id);
+         selector = Selector.open();
+      }
+
+      void add(Drawer drawer) throws IOException {
+         drawer.channel.configureBlocking(false);
+         drawer.key = drawer.channel.register(selector, SelectionKey.OP_READ, drawer);
+         drawers.add(drawer);
+      }
+
+      @Override
+      public void run() {
+         long interval = (long) (1e9 / Double.parseDouble(settings.get("rate")));
+         long start = System.nanoTime();
+         for (Drawer drawer : drawers) {
+            // Spread first sends over one interval so drawers don't fire in lockstep.
+            drawer.nextSendAt = start + (long) (drawer.random.nextDouble() * interval);
+            schedule.add(drawer);
+         }
+         try {
+            while (isRunning) {
+               long now = System.nanoTime();
+               while (!schedule.isEmpty() && schedule.peek().nextSendAt <= now) {
+                  Drawer drawer = schedule.poll();
+                  if (drawer.key.isValid()) {
+                     drawer.send(now);
+                     drawer.nextSendAt += interval;
+                     schedule.add(drawer);
+                  }
+               }
+               long waitMillis = schedule.isEmpty() ? 100
+                     : (schedule.peek().nextSendAt - System.nanoTime()) / 1_000_000;
+               if (waitMillis > 0) {
+                  selector.select(waitMillis);
+               } else {
+                  selector.selectNow();
+               }
+               for (SelectionKey key : selector.selectedKeys()) {
+                  Drawer drawer = (Drawer) key.attachment();
+                  try {
+                     if (key.isReadable()) drawer.read();
+                     if (key.isValid() && key.isWritable()) drawer.flush();
+                  } catch (IOException e) {
+                     System.err.println(e.getMessage());
+                     disconnects.incrementAndGet();
+                     key.cancel();
+                     drawer.channel.close();
+                  }
+               }
+               selector.selectedKeys().clear();
+            }
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+   } // Worker
+
+   public NetSketchLoadGenerator(Map<String, String> settings) {
+      this.settings = settings;
+      this.isStamping = Boolean.parseBoolean(settings.get("stamp"));
+   }
+
+   long getEventsSent() {
+      return eventsSent.get();
+   }
+
+   long getEventsReceived() {
+      return eventsReceived.get();
+   }
+
+   LatencyHistogram getFanOutLatency() {
+      return fanOutLatency;
+   }
+
+   LatencyHistogram getDeliveryLatency() {
+      return deliveryLatency;
+   }
+
+   private int intSetting(String key) {
+      return Integer.parseInt(settings.get(key));
+   }
+
+   /** The default board if there is just one, else board-0, board-1, ... in turn. */
+   private String boardName(int drawer) {
+      int numBoards = intSetting("boards");
+      return (numBoards <= 1) ? Handshake.DEFAULT_BOARD : "board-" + (drawer % numBoards);
+   }
+
+   private static double clamp(double v) {
+      return Math.max(0, Math.min(1, v));
+   }
+
+   /** Connects all drawers, runs for the configured time and returns the results as JSON. */
+   public String run() throws IOException, InterruptedException {
+      connect();
+      String json = measure();
+      close();
+      return json;
+   }
+
+   /** Connects and handshakes every drawer; nothing is sent yet. */
+   void connect() throws IOException {
+      int numDrawers = intSetting("drawers");
+      int numThreads = Math.max(1, Math.min(intSetting("threads"), numDrawers));
+      for (int i = 0; i < numThreads; i++) {
+         workers.add(new Worker(i));
+      }
+      InetSocketAddress address = new InetSocketAddress(settings.get("host"), intSetting("port"));
+      String prefix = "loadgen-" + ProcessHandle.current().pid() + "-";
+      connectFailures = 0;
+      long connectStart = System.nanoTime();
+      for (int i = 0; i < numDrawers; i++) {
+         try {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            new Handshake(prefix + i).with(Handshake.BOARD, boardName(i))
+                  .writeConnect(new DataOutputStream(channel.socket().getOutputStream()));
+            Handshake.readAccept(new DataInputStream(channel.socket().getInputStream()));
+            workers.get(i % numThreads).add(new Drawer(prefix + i, channel, i));
+         } catch (IOException e) {
+            connectFailures++;
+         }
+         if ((i + 1) % 500 == 0) {
+            System.err.println("Connected " + (i + 1) + " drawers");
+         }
+      }
+      connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+      System.err.println("Connected " + (numDrawers - connectFailures) + " drawers in "
+            + String.format(Locale.ROOT, "%.1f", connectSeconds) + " s; running...");
+   } // connect
+
+   /** Runs the connected drawers for the configured time and returns the results as JSON. */
+   String measure() throws InterruptedException {
+      int numDrawers = intSetting("drawers");
+
+      ServerSampler server = new ServerSampler(settings.get("serverPid"));
+      long start = System.nanoTime();
+      workers.forEach(Thread::start);
+      Thread.sleep(Long.parseLong(settings.get("seconds")) * 1000);
+      isRunning = false;
+      for (Worker worker : workers) {
+         worker.join();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      server.finish(seconds);
+
+      Json json = new Json();
+      json.object("config", settings);
+      json.number("connectedDrawers", numDrawers - connectFailures);
+      json.number("connectFailures", connectFailures);
+      json.number("connectSeconds", connectSeconds);
+      json.number("seconds", seconds);
+      json.number("eventsSent", eventsSent.get());
+      json.number("eventsReceived", eventsReceived.get());
+      json.number("sendsSkipped", sendsSkipped.get());
+      json.number("disconnects", disconnects.get());
+      json.number("eventsSentPerSecond", eventsSent.get() / seconds);
+      json.number("eventsReceivedPerSecond", eventsReceived.get() / seconds);
+      json.number("bytesSentPerSecond", bytesSent.get() / seconds);
+      json.number("bytesReceivedPerSecond", bytesReceived.get() / seconds);
+      json.object("fanOutLatencyMillis", millis(fanOutLatency));
+      if (isStamping) {
+         json.object("deliveryLatencyMillis", millis(deliveryLatency));
+      }
+      if (server.isSampling()) {
+         json.object("server", server.results());
+      }
+      return json.toString();
+   } // measure
+
+   /** Disconnects every drawer. */
+   void close() throws IOException {
+      for (Worker worker : workers) {
+         for (Drawer drawer : worker.drawers) drawer.channel.close();
+      }
+   }
+
+   /** Sample count and percentiles, in milliseconds, for the JSON results. */
+   private static Map<String, Object> millis(LatencyHistogram histogram) {
+      Map<String, Object> latency = new HashMap<>();
+      latency.put("samples", histogram.getCount());
+      latency.put("mean", histogram.getMean() / 1e6);
+      latency.put("p50", histogram.percentile(50) / 1e6);
+      latency.put("p90", histogram.percentile(90) / 1e6);
+      latency.put("p99", histogram.percentile(99) / 1e6);
+      latency.put("p999", histogram.percentile(99.9) / 1e6);
+      latency.put("max", histogram.getMax() / 1e6);
+      return latency;
+   }
+
+   /**
+    * CPU and memory of a server process on the same machine. CPU comes
+    * from ProcessHandle; memory and threads from /proc where available.
+    */
+   private static class ServerSampler {
+      private final ProcessHandle process;
+      private final Duration startCpu;
+      private final Map<String, Object> results = new HashMap<>();
+
+      ServerSampler(String pid) {
+         process = pid.isBlank() ? null : ProcessHandle.of(Long.parseLong(pid)).orElse(null);
+         startCpu = (process == null) ? null : process.info().totalCpuDuration().orElse(null);
+      }
+
+      boolean isSampling() {
+         return process != null;
+      }
+
+      void finish(double seconds) {
+         if (process == null) return;
+         Duration endCpu = process.info().totalCpuDuration().orElse(null);
+         if (startCpu != null && endCpu != null) {
+            double cpuSeconds = endCpu.minus(startCpu).toNanos() / 1e9;
+            results.put("cpuSeconds", cpuSeconds);
+            results.put("cpuCores", cpuSeconds / seconds);
+         }
+         try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/status"))) {
+               String[] parts = line.split("\\s+");
+               switch (parts[0]) {
+                  case "VmRSS:" -> results.put("rssKb", Long.parseLong(parts[1]));
+                  case "VmHWM:" -> results.put("peakRssKb", Long.parseLong(parts[1]));
+                  case "Threads:" -> results.put("threads", Long.parseLong(parts[1]));
+                  default -> { }
+               }
+            }
+         } catch (IOException e) {
+            // Not Linux, or no access; CPU time is still reported.
+         }
+      }
+
+      Map<String, Object> results() {
+         return results;
+      }
+   } // ServerSampler
+
+   /** Just enough JSON for flat results with one level of nesting. */
+   private static class Json {
+      private final StringBuilder sb = new StringBuilder("{");
+
+      void number(String key, double value) {
+         field(key).append(format(value));
+      }
+
+      void object(String key, Map<String, ?> map) {
+         field(key).append('{');
+         boolean first = true;
+         for (Map.Entry<String, ?> entry : new TreeMap<>(map).entrySet()) {
+            if (!first) sb.append(',');
+            first = false;
+            sb.append(quote(entry.getKey())).append(':');
+            Object value = entry.getValue();
+            sb.append(value instanceof Number n ? format(n.doubleValue()) : quote(String.valueOf(value)));
+         }
+         sb.append('}');
+      }
+
+      private StringBuilder field(String key) {
+         if (sb.length() > 1) sb.append(',');
+         return sb.append(quote(key)).append(':');
+      }
+
+      private static String format(double value) {
+         return (value == Math.rint(value) && Math.abs(value) < 1e15)
+               ? String.valueOf((long) value)
+               : String.format(Locale.ROOT, "%.3f", value);
+      }
+
+      private static String quote(String s) {
+         return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+      }
+
+      @Override
+      public String toString() {
+         return sb + "}";
+      }
+   } // Json
+
+   /** Parses {@code key=value} arguments over {@link #DEFAULTS}. */
+   static Map<String, String> parseArgs(String[] args) {
+      Map<String, String> settings = new HashMap<>(DEFAULTS);
+      for (String arg : args) {
+         int eq = arg.indexOf('=');
+         String key = (eq < 0) ? arg : arg.substring(0, eq);
+         if (eq < 0 || !DEFAULTS.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown argument: " + arg + "; expected key=value with key in "
+                  + new TreeSet<>(DEFAULTS.keySet()));
+         }
+         settings.put(key, arg.substring(eq + 1));
+      }
+      return settings;
+   }
+
+   public static void main(String[] args) throws Exception {
+      Map<String, String> settings = parseArgs(args);
+      String json = new NetSketchLoadGenerator(settings).run();
+      String out = settings.get("out");
+      if (out.equals("-")) {
+         System.out.println(json);
+      } else {
+         try (PrintStream ps = new PrintStream(out)) {
+            ps.println(json);
+         }
+         System.err.println("Results written to " + out);
+      }
+   }
+}
@@ -0,0 +1,520 @@
+package ajacoby.netsketch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Spreads boards over several NetSketchServer processes.
+ * <p>
+ * Clients connect to the router as if it were a server. The router reads
+ * the handshake, hashes the board name onto a consistent-hash ring of
+ * backends and from then on just copies bytes between the client and
+ * that backend, so compression and the codec pass through untouched.
+ * Every board lives on exactly one backend; adding or removing a
+ * backend only moves the boards whose ring position changed owner.
+ * <p>
+ * Moving a board: new connections to it are held, its clients are
+ * disconnected, the router takes a {@link Handshake#SNAPSHOT snapshot}
+ * of its history from the old backend and replays it (after a CLEAR)
+ * into the new one, then lets the held connections through. Clients
+ * reconnect on their own and get the history from the new backend. A
+ * backend that died takes its boards' history with it. The replay is
+ * only exempt from the backends' ingress limits if the router and the
+ * backends share a secret (see {@link Handshake#SECRET_ENV}); otherwise
+ * a long history may be cut short, which the router reports.
+ * <p>
+ * Arguments are {@code key=value} pairs, for example
+ * {@code java ajacoby.netsketch.NetSketchRouter backends=localhost:63420,localhost:63430}.
+ * See {@link #DEFAULTS}. Backends are added and removed at runtime
+ * through the admin port, one command per line: {@code add host:port},
+ * {@code remove host:port} or {@code list}.
+ */
+public class NetSketchRouter {
+   /** Every supported argument with its default value. */
+   public static final Map<String, String> DEFAULTS = Map.of(
+         "port", String.valueOf(NetSketchServer.PORT),   // where clients connect
+         "backends", "localhost:63420,localhost:63430",  // initial NetSketchServer processes
+         "admin", String.valueOf(NetSketchServer.PORT + 2), // loopback port for add/remove/list
+         "vnodes", "64",                                  // ring positions per backend
+         "healthMillis", "1000");                         // time between backend health checks
+
+   /** Name the router uses when talking to backends itself. */
+   private static final String ROUTER_NAME = "router";
+   private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+   /** Longest wait for a backend to take in a board's history. */
+   private static final int RESTORE_TIMEOUT_MILLIS = 30_000;
+
+   /** One NetSketchServer process. */
+   private static final class Backend {
+      final String host;
+      final int port;
+
+      Backend(String address) {
+         int colon = address.lastIndexOf(':');
+         if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + address);
+         }
+         this.host = address.substring(0, colon).strip();
+         this.port = Integer.parseInt(address.substring(colon + 1).strip());
+      }
+
+      Socket connect() throws IOException {
+         Socket socket = new Socket();
+         socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+         socket.setTcpNoDelay(true);
+         return socket;
+      }
+
+      @Override
+      public String toString() {
+         return host + ":" + port;
+      }
+   } // Backend
+
+   /** Immutable consistent-hash ring; replaced as a whole when backends change. */
+   private static final class Ring {
+      private final TreeMap<Long, Backend> positions = new TreeMap<>();
+      final List<Backend> backends;
+
+      Ring(List<Backend> backends, int vnodes) {
+         this.backends = List.copyOf(backends);
+         for (Backend backend : backends) {
+            for (int i = 0; i < vnodes; i++) {
+               positions.put(hash(backend + "#" + i), backend);
+            }
+         }
+      }
+
+      /** The backend that owns the board, or null if there are none. */
+      Backend owner(String board) {
+         if (positions.isEmpty()) return null;
+         Map.Entry<Long, Backend> entry = positions.ceilingEntry(hash(board));
+         return (entry != null) ? entry.getValue() : positions.firstEntry().getValue();
+      }
+
+      /** First 8 bytes of the MD5, which spreads short similar names well. */
+      private static long hash(String key) {
+         try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+               h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+         } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has MD5
+         }
+      }
+   } // Ring
+
+   /** One client proxied to a backend. */
+   private final class Session extends Thread {
+      private final Socket client;
+      private volatile Socket backend;
+      private String board;
+
+      Session(Socket client) {
+         super("RouterSession-" + client.getRemoteSocketAddress());
+         this.client = client;
+         setDaemon(true);
+      }
+
+      @Override
+      public void run() {
+         try {
+            client.setTcpNoDelay(true);
+            DataInputStream clientIn = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            Handshake request = Handshake.readConnect(clientIn);
+            board = request.getBoard();
+            Backend owner = route(board, this);
+            if (owner == null) {
+               throw new IOException("No backends");
+            }
+            backend = owner.connect();
+            request.writeConnect(new DataOutputStream(backend.getOutputStream()));
+            DataInputStream backendIn = new DataInputStream(new BufferedInputStream(backend.getInputStream()));
+            // The backend's UDP port isn't reachable through the router.
+            Handshake.readAccept(backendIn).without(Handshake.UDP).without(Handshake.TOKEN)
+                  .writeAccept(new DataOutputStream(client.getOutputStream()));
+            System.out.println("Routed " + request.getName() + " on board " + board + " to " + owner);
+            // Anything buffered past the handshake goes along with the rest.
+            Thread upstream = new Thread(() -> pump(clientIn, backend), getName() + "-up");
+            upstream.setDaemon(true);
+            upstream.start();
+            pump(backendIn, client);
+         } catch (IOException e) {
+            System.err.println(getName() + ": " + e.getMessage());
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } finally {
+            close();
+            if (board != null) {
+               Set<Session> boardSessions = sessions.get(board);
+               if (boardSessions != null) boardSessions.remove(this);
+            }
+         }
+      } // run
+
+      /** Copies until either side closes, then closes both. */
+      private void pump(InputStream from, Socket to) {
+         byte[] buf = new byte[8192];
+         try {
+            OutputStream out = to.getOutputStream();
+            int n;
+            while ((n = from.read(buf)) >= 0) {
+               out.write(buf, 0, n);
+            }
+         } catch (IOException e) {
+            // The other side hung up, or we were closed for a handoff.
+         }
+         close();
+      }
+
+      synchronized void close() {
+         closeQuietly(client);
+         closeQuietly(backend);
+      }
+   } // Session
+
+   private final int vnodes;
+   private volatile Ring ring;
+   /** Guards {@link #ring}, {@link #owners} and {@link #moving}. */
+   private final Object lock = new Object();
+   /** Backend holding each board's history, for every board seen so far. */
+   private final Map<String, Backend> owners = new HashMap<>();
+   /** Boards being handed off; connections to them wait. */
+   private final Set<String> moving = new HashSet<>();
+   private final Map<String, Set<Session>> sessions = new ConcurrentHashMap<>();
+   /** Backends named by the admin, alive or not; health checks decide which are on the ring. */
+   private final List<Backend> configured = new CopyOnWriteArrayList<>();
+   private final Set<Backend> down = ConcurrentHashMap.newKeySet();
+
+   public NetSketchRouter(Map<String, String> settings) {
+      vnodes = Integer.parseInt(settings.get("vnodes"));
+      for (String address : settings.get("backends").split(",")) {
+         if (!address.isBlank()) configured.add(new Backend(address));
+      }
+      ring = new Ring(configured, vnodes);
+   }
+
+   /**
+    * Picks the board's backend and registers the session with it, waiting
+    * out a handoff of that board.
+    */
+   private Backend route(String board, Session session) throws InterruptedException {
+      synchronized (lock) {
+         while (moving.contains(board)) {
+            lock.wait();
+         }
+         Backend owner = ring.owner(board);
+         if (owner != null) {
+            owners.put(board, owner);
+            sessions.computeIfAbsent(board, b -> ConcurrentHashMap.newKeySet()).add(session);
+         }
+         return owner;
+      }
+   } // route
+
+   /** Rebuilds the ring from the live backends and moves every board whose owner changed. */
+   private synchronized void rebalance() {
+      List<Backend> live = new ArrayList<>();
+      for (Backend backend : configured) {
+         if (!down.contains(backend)) live.add(backend);
+      }
+      Map<String, Backend[]> moves = new TreeMap<>();
+      synchronized (lock) {
+         if (live.equals(ring.backends)) return;
+         ring = new Ring(live, vnodes);
+         System.out.println("Ring is now " + live);
+         owners.forEach((board, from) -> {
+            Backend to = ring.owner(board);
+            if (to != from) {
+               moves.put(board, new Backend[] {from, to});
+               moving.add(board);
+            }
+         });
+      }
+      moves.forEach((board, move) -> handoff(board, move[0], move[1]));
+   } // rebalance
+
+   /** Moves one board's clients and history from one backend to another. */
+   private void handoff(String board, Backend from, Backend to) {
+      System.out.println("Moving board " + board + " from " + from + " to " + to);
+      try {
+         Set<Session> boardSessions = sessions.remove(board);
+         if (boardSessions != null) {
+            boardSessions.forEach(Session::close);
+         }
+         if (to == null) {
+            System.err.println("No backends left; board " + board + " is lost");
+         } else if (!isAlive(from)) {
+            System.err.println(from + " is gone; board " + board + " starts empty on " + to);
+         } else {
+            List<DrawEvent> history = snapshot(from, board);
+            restore(to, board, history);
+            int restored = snapshot(to, board).size();
+            if (restored < history.size()) {
+               throw new IOException(to + " only took " + restored + " of " + history.size()
+                     + " event(s); is " + Handshake.SECRET_ENV + " the same here and on the backends?");
+            }
+            System.out.println("Moved board " + board + ": " + history.size() + " event(s)");
+         }
+      } catch (IOException e) {
+         System.err.println("Moving board " + board + " failed, its history is lost: " + e.getMessage());
+      } finally {
+         synchronized (lock) {
+            if (to == null) {
+               owners.remove(board);
+            } else {
+               owners.put(board, to);
+            }
+            moving.remove(board);
+            lock.notifyAll();
+         }
+      }
+   } // handoff
+
+   /** The board's history as the backend holds it now. */
+   private static List<DrawEvent> snapshot(Backend backend, String board) throws IOException {
+      try (Socket socket = backend.connect()) {
+         new Handshake(ROUTER_NAME).with(Handshake.BOARD, board).with(Handshake.SNAPSHOT, "true")
+               .writeConnect(new DataOutputStream(socket.getOutputStream()));
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         if (!Handshake.readAccept(in).has(Handshake.SNAPSHOT, "true")) {
+            throw new IOException(backend + " does not support snapshots");
+         }
+         List<DrawEvent> history = new ArrayList<>();
+         DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
+         try {
+            while (true) {
+               history.add(decoder.read(in));
+            }
+         } catch (EOFException e) {
+            return history; // the backend hangs up after the last event
+         }
+      }
+   } // snapshot
+
+   /** Replaces the board's history on the backend with the given events. */
+   private static void restore(Backend backend, String board, List<DrawEvent> history) throws IOException {
+      try (Socket socket = backend.connect()) {
+         DataOutputStream handshakeOut = new DataOutputStream(socket.getOutputStream());
+         Handshake request = new Handshake(ROUTER_NAME).with(Handshake.BOARD, board);
+         String secret = Handshake.sharedSecret();
+         if (secret != null) {
+            request.with(Handshake.RELAY, secret); // the replay isn't held to a client's limits
+         }
+         request.writeConnect(handshakeOut);
+         InputStream in = socket.getInputStream();
+         Handshake.readAccept(new DataInputStream(in));
+         // The backend echoes everything back; drain it so it never blocks on us.
+         Thread drain = new Thread(() -> {
+            try {
+               while (in.read(new byte[8192]) >= 0) {
+                  // discard
+               }
+            } catch (IOException e) {
+               // closed
+            }
+         }, "RouterDrain-" + board);
+         drain.setDaemon(true);
+         drain.start();
+         OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+         DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+         // Whatever the backend had for this board (say, from before it
+         // last left the ring) is stale.
+         encoder.write(new DrawEvent(ROUTER_NAME, DrawEvent.DrawEventType.CLEAR), out);
+         for (DrawEvent de : history) {
+            encoder.write(de, out);
+         }
+         out.flush();
+         // Half-close so the backend reads every event before it sees EOF.
+         socket.shutdownOutput();
+         drain.join(RESTORE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   } // restore
+
+   /** Whether the backend answers a {@link Handshake#PING ping}. */
+   private static boolean isAlive(Backend backend) {
+      try (Socket socket = backend.connect()) {
+         socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+         new Handshake(ROUTER_NAME).with(Handshake.PING, "true")
+               .writeConnect(new DataOutputStream(socket.getOutputStream()));
+         return Handshake.readAccept(new DataInputStream(socket.getInputStream())).has(Handshake.PING, "true");
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /** Pings every configured backend, taking dead ones off the ring and putting recovered ones back. */
+   private void healthLoop(long millis) {
+      while (true) {
+         boolean changed = false;
+         for (Backend backend : configured) {
+            boolean alive = isAlive(backend);
+            if (alive && down.remove(backend)) {
+               System.out.println(backend + " is back");
+               changed = true;
+            } else if (!alive && down.add(backend)) {
+               System.err.println(backend + " is not answering");
+               changed = true;
+            }
+         }
+         if (changed) {
+            rebalance();
+         }
+         try {
+            Thread.sleep(millis);
+         } catch (InterruptedException e) {
+            return;
+         }
+      }
+   } // healthLoop
+
+   /** Serves add/remove/list commands, one connection at a time. */
+   private void adminLoop(int port) {
+      try (ServerSocket adminSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+         System.out.println("Admin: " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port);
+         while (true) {
+            try (Socket socket = adminSocket.accept()) {
+               BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+               PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+               String line;
+               while ((line = in.readLine()) != null) {
+                  out.println(command(line.strip()));
+               }
+            } catch (IOException e) {
+               System.err.println("Admin connection: " + e.getMessage());
+            }
+         }
+      } catch (IOException e) {
+         System.err.println("Admin port unavailable: " + e.getMessage());
+      }
+   } // adminLoop
+
+   private synchronized String command(String line) {
+      String[] words = line.split("\\s+");
+      try {
+         switch (words[0]) {
+            case "add" -> {
+               Backend backend = new Backend(words[1]);
+               if (find(backend) != null) return "already have " + backend;
+               configured.add(backend);
+               if (!isAlive(backend)) down.add(backend);
+               rebalance();
+               return "added " + backend + (down.contains(backend) ? " (not answering yet)" : "");
+            }
+            case "remove" -> {
+               Backend backend = find(new Backend(words[1]));
+               if (backend == null) return "no such backend " + words[1];
+               // Drain it while it is still up, then forget it.
+               configured.remove(backend);
+               rebalance();
+               down.remove(backend);
+               return "removed " + backend;
+            }
+            case "list" -> {
+               StringBuilder sb = new StringBuilder();
+               for (Backend backend : configured) {
+                  sb.append(backend).append(down.contains(backend) ? " down" : " up");
+                  synchronized (lock) {
+                     owners.forEach((board, owner) -> {
+                        if (owner == backend) sb.append(' ').append(board);
+                     });
+                  }
+                  sb.append('\n');
+               }
+               return sb.toString().strip();
+            }
+            default -> {
+               return "commands: add host:port, remove host:port, list";
+            }
+         }
+      } catch (RuntimeException e) {
+         return "error: " + e.getMessage();
+      }
+   } // command
+
+   /** The configured backend with the same address, if any. */
+   private Backend find(Backend backend) {
+      for (Backend b : configured) {
+         if (b.toString().equals(backend.toString())) return b;
+      }
+      return null;
+   }
+
+   /** Accepts clients forever, alongside the health check and admin threads. */
+   public void serve(int port, int adminPort, long healthMillis) throws IOException {
+      Thread health = new Thread(() -> healthLoop(healthMillis), "RouterHealth");
+      health.setDaemon(true);
+      health.start();
+      Thread admin = new Thread(() -> adminLoop(adminPort), "RouterAdmin");
+      admin.setDaemon(true);
+      admin.start();
+      try (ServerSocket serverSocket = new ServerSocket(port)) {
+         System.out.println("NetSketchRouter on port " + port + " for " + configured);
+         while (true) {
+            new Session(serverSocket.accept()).start();
+         }
+      }
+   } // serve
+
+   private static void closeQuietly(Socket socket) {
+      if (socket == null) return;
+      try {
+         socket.close();
+      } catch (IOException e) {
+         System.err.println("Unable to close socket: " + e.getMessage());
+      }
+   }
+
+   /** Parses {@code key=value} arguments over {@link #DEFAULTS}. */
+   static Map<String, String> parseArgs(String[] args) {
+      Map<String, String> settings = new HashMap<>(DEFAULTS);
+      for (String arg : args) {
+         int eq = arg.indexOf('=');
+         String key = (eq < 0) ? arg : arg.substring(0, eq);
+         if (eq < 0 || !DEFAULTS.containsKey(key)) {
+            throw new IllegalArgumentException("Unknown argument: " + arg + "; expected key=value with key in "
+                  + new TreeSet<>(DEFAULTS.keySet()));
+         }
+         settings.put(key, arg.substring(eq + 1));
+      }
+      return settings;
+   }
+
+   public static void main(String[] args) throws IOException {
+      Map<String, String> settings = parseArgs(args);
+      new NetSketchRouter(settings).serve(Integer.parseInt(settings.get("port")),
+            Integer.parseInt(settings.get("admin")), Long.parseLong(settings.get("healthMillis")));
+   }
+}
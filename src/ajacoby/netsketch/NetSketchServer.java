@@ -5,17 +5,45 @@ import ajacoby.stdlib.Draw;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.Point2D;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
- * Allows multiple clients to simultaneously draw to a single Draw
- * canvas.
+ * Allows multiple clients to simultaneously draw to shared Draw
+ * canvases. Each client joins one named board, picked in the handshake;
+ * boards have nothing in common but the server process.
  * <p></p>
  * TODO: Add (graphical) list of currently connected clients.
  */
@@ -24,49 +52,271 @@ public class NetSketchServer {
     * Thread for listening for updates from one client.
     */
    private class NetSketchServerThread extends Thread {
+      private final SocketChannel channel;
       private final Socket socket;
       private String clientName;
-      private ObjectInputStream in;
-      private ObjectOutputStream out;
-      private boolean continueThread = true;
+      /** Tells apart clients with the same name in the metrics. */
+      private final int clientId = nextClientId.incrementAndGet();
+      /** Encoded bytes read from this client; only written by this thread. */
+      private volatile long bytesIn = 0;
+      private DataInputStream in;
+      /** What {@link #in} reads through, to tell whether more input is already here. */
+      private PeekableInputStream buffered;
+      private final DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
+      /** Null unless this client asked for (and got) compression. */
+      private Inflater inflater;
+      /** Batches frames onto the socket channel from its own thread. */
+      private OutboundWriter writer;
+      /** The board this client draws on. */
+      private Board board;
+      /** Only wants a copy of the board's history (see {@link Handshake#SNAPSHOT}). */
+      private boolean isSnapshot = false;
+      /** A standby server (see {@link Handshake#REPLICATE}) rather than a client. */
+      private boolean isReplica = false;
+      /** Identifies this client's datagrams, if it asked for UDP; otherwise 0. */
+      private long udpToken = 0;
+      /** Identifies the client in datagrams to others (see {@link Ephemeral#senderId}). */
+      private long udpSender = 0;
+      /** Where this client's datagrams come from; null until the first one. */
+      private volatile SocketAddress udpAddress;
+      /** Newest update of each {@link Ephemeral} kind forwarded; only used by the datagram thread. */
+      private final long[] lastEphemeralSeq = new long[Ephemeral.KINDS];
+      /** When a datagram last came from this client, to tell whether its cursor is still there. */
+      private volatile long udpHeardAt = 0;
+      /** Latest cursor position, sent with the board's next presence update; NaN until known. */
+      private volatile float cursorX = Float.NaN;
+      private volatile float cursorY = Float.NaN;
+      /** Last event the client already has, if it may resume after it; otherwise -1. */
+      private long resumeAfter = -1;
+      /** Throttles this client's events; relays are not limited. */
+      private IngressLimiter limiter;
+      /** Credit granted back to the client for its events, or null without flow control. */
+      private FlowControl.Receiver grants;
+      private volatile boolean continueThread = true;
 
-      private NetSketchServerThread(Socket socket) {
-         this.socket = socket;
-         System.out.println("New client connection from " + socket.getInetAddress());
+      private NetSketchServerThread(SocketChannel channel) {
+         super("NetSketchServerThread-" + channel.socket().getRemoteSocketAddress());
+         this.channel = channel;
+         this.socket = channel.socket();
+      }
+
+      /**
+       * Reads the client's handshake and answers it, on this thread so a
+       * slow or silent client never holds up accepting others. Clears
+       * continueThread if the client is turned away or fails.
+       */
+      private void handshake() {
          try {
-            System.out.println("NetSketchServerThread: attempting to create streams");
-            in = new ObjectInputStream(socket.getInputStream());
-            out = new ObjectOutputStream(socket.getOutputStream());
-            String connectStr = (String) in.readObject();
-            clientName = connectStr.substring(NetSketchClient.CONNECT_PREFIX.length());
-            System.out.println("Connected to " + clientName + "\n");
+            // The writer thread does its own batching; Nagle would only add
+            // a delayed-ACK stall per hop, which relays multiply.
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            Handshake request = Handshake.readConnect(new DataInputStream(socket.getInputStream()));
+            socket.setSoTimeout(0);
+            clientName = request.getName();
+            if (request.has(Handshake.PING, "true")) {
+               new Handshake(clientName).with(Handshake.PING, "true")
+                     .writeAccept(new DataOutputStream(socket.getOutputStream()));
+               continueThread = false;
+               return;
+            }
+            isSnapshot = request.has(Handshake.SNAPSHOT, "true");
+            if (isStandby && !isSnapshot) {
+               System.out.println("Turned away " + clientName + ": standing by for " + primary);
+               socket.close();
+               continueThread = false;
+               return;
+            }
+            if (request.has(Handshake.REPLICATE, "true") && !request.hasSecret(sharedSecret)) {
+               // A replica gets every board, so only a standby that shares the secret may ask
+               System.out.println("Turned away " + clientName + ": replicating needs " + Handshake.SECRET_ENV);
+               socket.close();
+               continueThread = false;
+               return;
+            }
+            System.out.println("New client connection from " + socket.getInetAddress());
+            setName("NetSketchServerThread-" + clientName);
+            board = boardForClient(request.getBoard());
+            if (board == null) {
+               System.out.println("Turned away " + clientName + ": already " + MAX_BOARDS + " boards");
+               socket.close();
+               continueThread = false;
+               return;
+            }
+            Handshake reply = new Handshake(clientName).with(Handshake.BOARD, board.name)
+                  .with(Handshake.EPOCH, board.getEpoch());
+            if (isSnapshot) {
+               reply.with(Handshake.SNAPSHOT, "true");
+            }
+            isReplica = request.has(Handshake.REPLICATE, "true");
+            if (isReplica) {
+               reply.with(Handshake.REPLICATE, "true");
+            }
+            // A resume point that isn't a number gets the full history
+            long resume = parseSequence(request.get(Handshake.RESUME));
+            if (resume >= 0 && board.canResume(request.get(Handshake.EPOCH), resume)) {
+               resumeAfter = resume;
+               reply.with(Handshake.RESUME, Long.toString(resume));
+            }
+            if (request.has(Handshake.UDP, "true") && datagrams != null && !isSnapshot && !isReplica) {
+               udpToken = ThreadLocalRandom.current().nextLong() | 1; // never 0
+               udpSender = Ephemeral.senderId(udpToken);
+               udpClients.put(udpToken, this);
+               reply.with(Handshake.UDP, Integer.toString(datagrams.socket().getLocalPort()))
+                     .with(Handshake.TOKEN, Long.toHexString(udpToken));
+            }
+            limiter = new IngressLimiter(request.hasSecret(sharedSecret)
+                  ? IngressLimiter.Limits.UNLIMITED : ingressLimits);
+            boolean compress = !isSnapshot && !isReplica && allowCompression
+                  && request.has(Handshake.COMPRESS, Handshake.DEFLATE);
+            if (compress) {
+               reply.with(Handshake.COMPRESS, Handshake.DEFLATE);
+            }
+            String window = request.get(Handshake.CREDIT);
+            long clientWindow = (window != null) ? FlowControl.parseWindow(window) : 0;
+            if (clientWindow < 0) {
+               System.out.println("Turned away " + clientName + ": bad credit window " + window);
+               socket.close();
+               continueThread = false;
+               return;
+            }
+            if (window != null && !isSnapshot && !isReplica) {
+               grants = new FlowControl.Receiver(FlowControl.SERVER_WINDOW);
+               reply.with(Handshake.CREDIT, Long.toString(FlowControl.SERVER_WINDOW));
+            }
+            reply.writeAccept(new DataOutputStream(socket.getOutputStream()));
+            InputStream rawIn = socket.getInputStream();
+            if (compress) {
+               inflater = new Inflater();
+               rawIn = new InflaterInputStream(rawIn, inflater);
+            }
+            buffered = new PeekableInputStream(rawIn);
+            in = new DataInputStream(buffered);
+            if (!isSnapshot) {
+               Deflater deflater = compress ? Compression.newDeflater() : null;
+               writer = new OutboundWriter(clientName, channel, deflater);
+               if (!isReplica) {
+                  // A standby copes with a backlog rather than take over while it catches up
+                  writer.limitQueue(OutboundWriter.MAX_QUEUED_BYTES, OutboundWriter.MAX_QUEUED_FRAMES);
+               }
+               if (grants != null) {
+                  writer.useCredit(clientWindow);
+                  decoder.setCreditListener(writer::grant);
+               }
+               writer.start();
+            }
+            System.out.println("Connected to " + clientName + " on board " + board.name
+                  + (compress ? " (compressed)" : "") + "\n");
          } catch (Exception e) {
             e.printStackTrace();
+            continueThread = false;
          }
-      } // NetSketchServerThread()
+      } // handshake
 
       @Override
       public void run() {
+         // A LINE held back while overloaded, to merge with the ones right behind it
+         DrawEvent held = null;
+         long heldAt = 0;
+         // The points merged away inside it
+         List<Point2D> heldDropped = new ArrayList<>(OverloadController.MAX_MERGED);
+         handshake();
          try {
-            shareCanvas();
-            System.out.println("NetSketchServerThread: Listening for messages...");
+            if (!continueThread) {
+               // Turned away, or the handshake failed
+            } else if (isSnapshot) {
+               board.writeSnapshot(channel);
+               continueThread = false;
+            } else if (isReplica) {
+               replicateTo(writer, clientName + "-" + clientId);
+               continueThread = false;
+            } else {
+               if (board.join(this)) {
+                  System.out.println("NetSketchServerThread: Listening for messages...");
+               } else {
+                  System.out.println(clientName + " can't join board " + board.name + "; disconnecting");
+                  continueThread = false;
+               }
+            }
             while (continueThread && isServerAlive) {
-               DrawEvent de = (DrawEvent) in.readObject();
-               synchronized (drawEvents) {
-                  if (de.getType().equals(DrawEvent.DrawEventType.CLEAR)) {
-                     drawEvents.clear();
+               PipelineEvents.ServerReceive receiveEvent = new PipelineEvents.ServerReceive();
+               receiveEvent.begin();
+               DrawEvent de = decoder.read(in);
+               receiveEvent.end();
+               bytesIn += decoder.lastBytes();
+               eventsIn.increment(de.getType().name());
+               if (receiveEvent.shouldCommit()) {
+                  receiveEvent.describe(de);
+                  receiveEvent.bytes = decoder.lastBytes();
+                  receiveEvent.commit();
+               }
+               long receivedAt = System.nanoTime();
+               if (de.getTimestamp() != 0) {
+                  uplinkLatency.recordMicros(LatencyHistogram.epochMicros() - de.getTimestamp());
+               }
+               if (!limiter.admit(decoder.lastBytes())) {
+                  System.out.println("Disconnecting " + clientName + ": over the ingress limit ("
+                        + ingressLimits + ") for " + ingressLimits.disconnectAfterMillis + " ms");
+                  ingressDisconnects.increment(board.name);
+                  break;
+               }
+               if (held != null) {
+                  DrawEvent merged = overload.merge(held, de, heldDropped, board.getCanvasWidth());
+                  if (merged != null) {
+                     held = merged;
+                     de = null;
+                  } else {
+                     board.submit(held, heldAt);
+                     held = null;
+                  }
+               }
+               // Only hold an event while the next one is already here,
+               // so merging never makes anyone wait for it.
+               if (de != null) {
+                  if (overload.canMerge(de) && hasInputWaiting()) {
+                     held = de;
+                     heldAt = receivedAt;
+                     heldDropped.clear();
                   } else {
-                     drawEvents.add(de);
+                     board.submit(de, receivedAt);
+                  }
+               }
+               if (held != null && !hasInputWaiting()) {
+                  board.submit(held, heldAt);
+                  held = null;
+               }
+               if (grants != null) {
+                  grants.consumed(1);
+                  long credit = grants.takeGrant();
+                  if (credit > 0) {
+                     Frame frame = DrawEventCodec.credit(credit);
+                     writer.enqueueControl(frame);
+                     frame.release();
                   }
                }
-               de.draw(draw);
-               broadcast(de);
             }
          } catch (Exception e) {
             System.err.println("Exception from client: " + clientName);
             e.printStackTrace();
          }
          continueThread = false;
+         if (held != null) {
+            board.submit(held, heldAt); // the client has drawn it
+         }
+         if (board != null) {
+            board.leave(this);
+         }
+         if (udpToken != 0) {
+            udpClients.remove(udpToken);
+         }
+         if (writer != null) {
+            writer.close();
+         }
+         if (inflater != null) {
+            System.out.println(Compression.report("Inbound compression for " + clientName,
+                  inflater.getBytesWritten(), inflater.getBytesRead(), -1));
+            inflater.end();
+         }
          try {
             socket.close();
          } catch (IOException e) {
@@ -74,99 +324,1311 @@ public class NetSketchServer {
          }
       } // run
 
+      /** Whether more of the client's input has already arrived, so reading it won't block. */
+      private boolean hasInputWaiting() throws IOException {
+         return buffered.buffered() > 0 || (inflater != null && inflater.getRemaining() > 0)
+               || socket.getInputStream().available() > 0;
+      }
+
+      /** Metric labels identifying this client. */
+      private String[] labels() {
+         return new String[] {"board", board.name, "client", clientName, "id", Integer.toString(clientId)};
+      }
+
+      /** Hands an already-encoded event to this client's writer thread. */
+      public void send(Frame frame) {
+         if (!writer.enqueue(frame)) {
+            continueThread = false; // writer gave up on this client
+         }
+      } // send
+
+      /** Hands a CLEAR to the writer, which drops whatever is still queued in front of it. */
+      public void sendClear(Frame clear, Frame barrier) {
+         if (!writer.enqueueClear(clear, barrier)) {
+            continueThread = false;
+         }
+      }
+   } // NetSketchServerThread class
+
+   /** A BufferedInputStream that tells how much it holds without asking the stream under it. */
+   private static class PeekableInputStream extends BufferedInputStream {
+      PeekableInputStream(InputStream in) {
+         super(in);
+      }
+
+      int buffered() {
+         return count - pos;
+      }
+   }
+
+   /**
+    * One named canvas with its own history, clients, encoder and render
+    * surface. Everything is guarded by the board's own locks, so boards
+    * never contend with each other. Drawing on the board's canvas runs
+    * on the render worker the board is assigned to, off the readers'
+    * threads.
+    */
+   private class Board {
+      private final String name;
+      private final List<DrawEvent> drawEvents = new ArrayList<>();
+      /** Encoded copies of drawEvents, replayed to new clients; guarded by drawEvents. */
+      private final List<Frame> drawFrames = new ArrayList<>();
+      /** Total size of drawFrames; guarded by drawEvents. */
+      private long historyBytes = 0;
+      /**
+       * Encodes every frame sent to this board's clients; guarded by
+       * drawEvents. It resets on CLEAR, in step with drawFrames, so
+       * history replays decode from scratch.
+       */
+      private final DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+      /**
+       * Identifies this board's history, so sequence numbers from another
+       * board (or server) of the same name aren't mistaken for ours. A
+       * standby adopts its primary's. Guarded by drawEvents.
+       */
+      private String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      /** Sequence number of the last event published; guarded by drawEvents. */
+      private long seq = 0;
+      /** Sequence number of the last CLEAR; the history is what came after it. Guarded by drawEvents. */
+      private long clearedAt = 0;
+      private final List<NetSketchServerThread> clients = new ArrayList<>();
+      /** On a relay, the connection to the server above; otherwise null. */
+      private RelayUplink uplink;
+      /** Only drawn on by the render worker. */
+      private final Draw draw;
+      private final JLabel canvas;
+      private final ExecutorService worker;
+      /** Events waiting to be drawn on the server's canvas. */
+      private final ConcurrentLinkedQueue<DrawEvent> pendingDraws = new ConcurrentLinkedQueue<>();
+      private final AtomicBoolean isRenderScheduled = new AtomicBoolean();
+      /** Size of pendingDraws, for the overload controller. */
+      private final AtomicInteger pendingCount = new AtomicInteger();
+      /** Drawing was skipped while overloaded; redrawn from history afterwards. Only used by the render worker. */
+      private boolean isCanvasStale = false;
+      /** Drawn on but not shown yet, to keep to the overload level's show interval. */
+      private volatile boolean isShowPending = false;
+      /** Only used by the render worker. */
+      private long shownAt = 0;
+      /** Set when a cursor moved since the last presence update; cleared by the presence thread. */
+      private volatile boolean isPresenceChanged = false;
+      /** When a client last asked for the board or left it. */
+      private volatile long usedAt = System.currentTimeMillis();
+      /** Set once the board is dropped from {@link #boards}; guarded by clients. */
+      private boolean isRetired = false;
+      /** Only used by the presence thread. */
+      private long presenceSeq = 0;
+      private long presenceSentAt = 0;
+
+      private Board(String name, ExecutorService worker) {
+         this.name = name;
+         this.worker = worker;
+         draw = new Draw("NetSketchServer: " + name);
+         // Shown once per batch of events by render()
+         draw.enableDoubleBuffering();
+         canvas = draw.getJLabel();
+      }
+
+      private String getEpoch() {
+         synchronized (drawEvents) {
+            return epoch;
+         }
+      }
+
+      /**
+       * Whether a client that has every event up to {@code lastSeq} of the
+       * given epoch can be sent just the events after it.
+       */
+      private boolean canResume(String epoch, long lastSeq) {
+         synchronized (drawEvents) {
+            return this.epoch.equals(epoch) && lastSeq >= clearedAt && lastSeq <= seq;
+         }
+      }
+
       /**
-       * Sends all DrawEvents to a new client - to be called
-       * immediately after a new client connects.
+       * Queues all DrawEvents for a new client (or those after the one it
+       * resumes from) and registers it for broadcasts - to be called
+       * immediately after a new client connects. Both happen under the
+       * history lock so no event is missed or sent twice.
+       *
+       * @return false if the client can't resume after all, because the
+       *         board was cleared since its handshake
        */
-      private void shareCanvas() throws IOException {
-         System.out.println("Sending current state of canvas: " + drawEvents.size() + " event(s)");
-         out.reset();
+      private boolean join(NetSketchServerThread thread) {
          synchronized (drawEvents) {
-            for (DrawEvent de : drawEvents) {
-               out.writeObject(de);
+            long first = clearedAt + 1;
+            if (thread.resumeAfter >= 0) {
+               if (!canResume(epoch, thread.resumeAfter)) {
+                  System.out.println("Board " + name + " was cleared since " + thread.clientName + " asked to resume");
+                  return false;
+               }
+               first = thread.resumeAfter + 1;
+            }
+            System.out.println("Sending current state of board " + name + ": "
+                  + (seq - first + 1) + " event(s)");
+            Frame sequence = DrawEventCodec.sequence(first);
+            thread.send(sequence);
+            sequence.release();
+            for (Frame frame : drawFrames.subList((int) (first - clearedAt - 1), drawFrames.size())) {
+               thread.send(frame);
             }
+            synchronized (clients) {
+               if (isRetired) {
+                  System.out.println("Board " + name + " was retired as " + thread.clientName + " joined");
+                  return false; // it reconnects to a new board of the same name
+               }
+               clients.add(thread);
+            }
+            thread.writer.measureLatency(outboundLatency);
+         }
+         System.out.println("done queueing canvas\n");
+         return true;
+      } // join
+
+      /**
+       * Starts the board over as a copy of a primary's board; the primary's
+       * history follows through {@link #publish}.
+       */
+      private void restart(String epoch, long clearedAt) {
+         synchronized (drawEvents) {
+            drawEvents.clear();
+            drawFrames.forEach(Frame::release);
+            drawFrames.clear();
+            historyBytes = 0;
+            encoder.reset();
+            this.epoch = epoch;
+            this.seq = clearedAt;
+            this.clearedAt = clearedAt;
          }
-         out.flush();
-         System.out.println("done sending canvas\n");
-      } // shareCanvas
+         scheduleDraw(new DrawEvent("standby", DrawEvent.DrawEventType.CLEAR));
+      } // restart
 
-      public void send(DrawEvent de) {
+      /**
+       * Writes the board's history straight to the channel, for a router
+       * moving the board to another server. The history is copied under
+       * the lock but written outside it.
+       */
+      private void writeSnapshot(SocketChannel channel) throws IOException {
+         List<Frame> snapshot;
+         synchronized (drawEvents) {
+            snapshot = new ArrayList<>(drawFrames);
+            snapshot.forEach(Frame::retain);
+         }
+         System.out.println("Sending snapshot of board " + name + ": " + snapshot.size() + " event(s)");
          try {
-            out.reset();
-            out.writeObject(de);
-            out.flush();
-         } catch (IOException e) {
-            System.err.println("Exception from client: " + clientName);
-            e.printStackTrace();
-            continueThread = false; // bail on fail!
+            for (Frame frame : snapshot) {
+               ByteBuffer bytes = frame.view();
+               while (bytes.hasRemaining()) {
+                  channel.write(bytes);
+               }
+            }
+         } finally {
+            snapshot.forEach(Frame::release);
          }
-      } // send
-   } // NetSketchServerThread class
+      } // writeSnapshot
+
+      private void leave(NetSketchServerThread thread) {
+         synchronized (clients) {
+            clients.remove(thread);
+         }
+         usedAt = System.currentTimeMillis();
+      }
+
+      /**
+       * Retires the board if it has had no clients for {@code idleMillis}.
+       *
+       * @return whether it was retired
+       */
+      private boolean retireIfIdle(long now, long idleMillis) {
+         synchronized (clients) {
+            if (!clients.isEmpty() || now - usedAt < idleMillis) return false;
+            isRetired = true;
+         }
+         retire();
+         System.out.println("Retired idle board " + name);
+         return true;
+      } // retireIfIdle
+
+      /**
+       * Drops the board, with its history, canvas and uplink. Standbys are
+       * told before the board leaves {@link #boards}, so they drop their
+       * copy before a new board of the same name can sync to them.
+       */
+      private void retire() {
+         synchronized (clients) {
+            isRetired = true;
+         }
+         synchronized (drawEvents) {
+            for (ReplicaLink replica : replicas) {
+               replica.retire(this);
+            }
+            drawEvents.clear();
+            drawFrames.forEach(Frame::release);
+            drawFrames.clear();
+            historyBytes = 0;
+         }
+         boards.remove(name, this);
+         if (uplink != null) {
+            uplink.close();
+         }
+         if (window != null) {
+            SwingUtilities.invokeLater(() -> {
+               boardChooser.removeItem(name);
+               draw.dispose();
+            });
+         }
+      } // retire
+
+      /**
+       * An event from one of the board's clients. A relay sends it up, and
+       * publishes it when it comes back down in the root's order.
+       */
+      private void submit(DrawEvent de, long receivedAt) {
+         if (uplink != null) {
+            uplink.forward(de);
+         } else {
+            publish(de, receivedAt);
+         }
+      }
+
+      /**
+       * Adds the event to the history and queues it for every client on
+       * the board, then hands it to the render worker.
+       */
+      private void publish(DrawEvent de, long receivedAt) {
+         // Encode and broadcast under the history lock: the encoder is
+         // stateful, and every client (including one joining right now)
+         // has to see the frames in the order they were encoded.
+         PipelineEvents.HistoryAppend appendEvent = new PipelineEvents.HistoryAppend();
+         PipelineEvents.Broadcast broadcastEvent = new PipelineEvents.Broadcast();
+         appendEvent.begin();
+         Frame frame;
+         synchronized (drawEvents) {
+            if (appendEvent.isEnabled()) {
+               appendEvent.lockWait = System.nanoTime() - receivedAt;
+            }
+            frame = encoder.encode(de);
+            for (ReplicaLink replica : replicas) {
+               replica.send(this, frame);
+            }
+            seq++;
+            Frame barrier = null;
+            if (de.getType().equals(DrawEvent.DrawEventType.CLEAR)) {
+               barrier = DrawEventCodec.clearBarrier(seq, de);
+               clearedAt = seq;
+               drawEvents.clear();
+               drawFrames.forEach(Frame::release);
+               drawFrames.clear();
+               historyBytes = 0;
+            } else {
+               drawEvents.add(de);
+               drawFrames.add(frame.retain());
+               historyBytes += frame.size();
+            }
+            appendEvent.historySize = drawEvents.size();
+            appendEvent.end();
+            broadcastEvent.begin();
+            broadcastEvent.clients = broadcast(frame, barrier);
+            broadcastEvent.end();
+            if (barrier != null) {
+               barrier.release();
+            }
+            eventsOut.add(de.getType().name(), broadcastEvent.clients);
+         }
+         if (appendEvent.shouldCommit()) {
+            appendEvent.describe(de);
+            appendEvent.commit();
+         }
+         if (broadcastEvent.shouldCommit()) {
+            broadcastEvent.describe(de);
+            broadcastEvent.bytes = frame.size();
+            broadcastEvent.commit();
+         }
+         frame.release();
+         broadcastLatency.record(System.nanoTime() - receivedAt);
+         scheduleDraw(de);
+      } // publish
+
+      /** Hands the event to the render worker. */
+      private void scheduleDraw(DrawEvent de) {
+         pendingDraws.add(de);
+         pendingCount.incrementAndGet();
+         if (isRenderScheduled.compareAndSet(false, true)) {
+            worker.execute(this::render);
+         }
+      }
+
+      /**
+       * Queues one shared frame for every client; the event is encoded only once.
+       *
+       * @param barrier for a CLEAR, what to send clients that still have
+       *        frames queued in its place; otherwise null
+       * @return number of clients the frame was queued for
+       */
+      private int broadcast(Frame frame, Frame barrier) {
+         synchronized (clients) {
+            if (barrier != null) {
+               clients.forEach(thread -> thread.sendClear(frame, barrier));
+            } else {
+               clients.forEach(thread -> thread.send(frame));
+            }
+            int count = clients.size();
+            clients.removeIf(thread -> !thread.continueThread);
+            return count;
+         }
+      }
+
+      /** Runs on the worker: draws everything pending, then shows the canvas once. */
+      private void render() {
+         isRenderScheduled.set(false); // events added from now on schedule another run
+         boolean drewAny = false;
+         int skipped = 0;
+         DrawEvent de;
+         while ((de = pendingDraws.poll()) != null) {
+            pendingCount.decrementAndGet();
+            if (overload.getLevel() == OverloadController.Level.DEFER) {
+               skipped++; // redrawn from history once the load subsides
+               continue;
+            }
+            PipelineEvents.ServerDraw drawEvent = new PipelineEvents.ServerDraw();
+            long start = System.nanoTime();
+            drawEvent.begin();
+            de.draw(draw);
+            drawEvent.end();
+            if (drawEvent.shouldCommit()) {
+               drawEvent.describe(de);
+               drawEvent.commit();
+            }
+            renderLatency.record(System.nanoTime() - start);
+            drewAny = true;
+         }
+         if (skipped > 0) {
+            overload.deferred(skipped);
+            isCanvasStale = true;
+         }
+         if (drewAny && window != null) {
+            show();
+         }
+      } // render
+
+      /**
+       * Runs on the worker: shows the canvas, unless it was shown less than
+       * the overload level's interval ago. Then the overload thread comes
+       * back for it.
+       */
+      private void show() {
+         long now = System.nanoTime();
+         if (now - shownAt < TimeUnit.MILLISECONDS.toNanos(overload.getLevel().showIntervalMillis)) {
+            isShowPending = true;
+            return;
+         }
+         isShowPending = false;
+         shownAt = now;
+         synchronized (draw) {
+            draw.show();
+         }
+      }
+
+      private void showIfPending() {
+         if (isShowPending) show();
+      }
+
+      /** Runs on the worker once the load subsides: draws the history again if anything was skipped. */
+      private void redraw() {
+         if (!isCanvasStale || overload.getLevel() == OverloadController.Level.DEFER) return;
+         isCanvasStale = false;
+         List<DrawEvent> history;
+         synchronized (drawEvents) {
+            history = new ArrayList<>(drawEvents);
+         }
+         synchronized (draw) {
+            draw.clear();
+            history.forEach(de -> de.draw(draw));
+         }
+         if (window != null) {
+            show();
+         }
+      } // redraw
+
+      private int getCanvasWidth() {
+         return canvas.getIcon().getIconWidth();
+      }
+
+      private int getClientCount() {
+         synchronized (clients) {
+            return clients.size();
+         }
+      }
+
+      private List<NetSketchServerThread> getClients() {
+         synchronized (clients) {
+            return new ArrayList<>(clients);
+         }
+      }
+   } // Board class
+
+   /** A standby server receiving every board's events; see {@link Replication}. */
+   private static class ReplicaLink {
+      private final String name;
+      private final OutboundWriter writer;
+      /**
+       * Boards the replica has the history of; only changed under that
+       * board's lock. Kept by instance, since a retired board's name may
+       * come back as a new board with a new history.
+       */
+      private final Set<Board> synced = ConcurrentHashMap.newKeySet();
+
+      ReplicaLink(String name, OutboundWriter writer) {
+         this.name = name;
+         this.writer = writer;
+      }
+
+      /**
+       * Sends one of the board's frames, first sending the board's history
+       * if the replica hasn't got it; caller holds the board's history lock.
+       */
+      void send(Board board, Frame frame) {
+         sync(board);
+         enqueue(Replication.frame(board.name, frame));
+      }
+
+      /** Sends the board's history unless already sent; caller holds the board's history lock. */
+      void sync(Board board) {
+         if (!synced.add(board)) return;
+         enqueue(Replication.sync(board.name, board.epoch, board.clearedAt));
+         for (Frame frame : board.drawFrames) {
+            enqueue(Replication.frame(board.name, frame));
+         }
+      }
+
+      /** Tells the replica to drop its copy of the board; caller holds the board's history lock. */
+      void retire(Board board) {
+         if (synced.remove(board)) {
+            enqueue(Replication.retire(board.name));
+         }
+      }
+
+      void enqueue(Frame message) {
+         writer.enqueue(message);
+         message.release();
+      }
+   } // ReplicaLink
 
    public static final int PORT = 63414;
-   private final List<DrawEvent> drawEvents = new ArrayList<>();
-   private final List<NetSketchServerThread> threads = new ArrayList<>();
+   /** How long a new connection has to send its handshake. */
+   private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+   /** Most boards at once; each has its own canvas and history, and on a relay an uplink. */
+   static final int MAX_BOARDS = 64;
+   private static final long RETIRE_CHECK_MILLIS = 60 * 1000;
+   /** Every board by name; a board is created when the first client asks for it, and retired when idle. */
+   private final Map<String, Board> boards = new ConcurrentHashMap<>();
+   /**
+    * Threads that draw the boards' canvases. A board always renders on the
+    * same worker, and boards are spread over workers by name, so busy
+    * boards use separate cores.
+    */
+   private final ExecutorService[] renderWorkers = new ExecutorService[Runtime.getRuntime().availableProcessors()];
    /** Window with draw canvas and controls. */
    private JFrame window;
-   /** Draw object works like a canvas embedded in our JFrame window. */
-   private final Draw draw = new Draw("NetSketchServer");
+   /** Shows the canvas of the board picked in boardChooser. */
+   private JPanel canvasPanel;
+   private JComboBox<String> boardChooser;
+   /** Only set for servers from startInProcess(). */
+   private ServerSocketChannel serverChannel;
+   /** Carries {@link Ephemeral} updates; null if the port was taken. */
+   private DatagramChannel datagrams;
+   /** Clients that asked for UDP, by token. */
+   private final Map<Long, NetSketchServerThread> udpClients = new ConcurrentHashMap<>();
+   /** Standby servers copying this one. */
+   private final List<ReplicaLink> replicas = new CopyOnWriteArrayList<>();
+   /** Server this one stands by for ("host:port"), or null. */
+   private final String primary;
+   /** Server this one relays every board from ("host:port", or several), or null. */
+   private final String upstream;
+   /** Turns away clients while copying {@link #primary}; cleared on taking over. */
+   private volatile boolean isStandby = false;
+   /** Primary send time to applied here, for the last replication message; -1 before the first. */
+   private volatile long replicationLagMicros = -1;
    /** Flag for threads to know when to shut down. */
    private volatile boolean isServerAlive = true;
+   /** Whether clients that ask for compression get it. */
+   private final boolean allowCompression;
+   /** Applied to each client's inbound events. */
+   private final IngressLimiter.Limits ingressLimits;
+   /**
+    * How long a board may go without clients before it is retired,
+    * history and all; 0 never to retire boards.
+    */
+   private final long boardIdleMillis;
+   /** Relays and routers that send it are exempt from the ingress limits; null to exempt nobody. */
+   private final String sharedSecret = Handshake.sharedSecret();
+   /** Degrades stroke fidelity while the server can't keep up; only run by servers from the public constructors. */
+   private final OverloadController overload = new OverloadController(
+         this::totalQueuedBytes, this::renderBacklog, this::overloadChanged);
+   // Pipeline stage latencies
+   /** Client timestamp to server receive (needs roughly synchronized clocks). */
+   private final LatencyHistogram uplinkLatency = new LatencyHistogram("uplink");
+   /** Receive to queued for every client, including waiting for the history lock. */
+   private final LatencyHistogram broadcastLatency = new LatencyHistogram("broadcast");
+   /** Drawing an event on the server's own canvas of its board. */
+   private final LatencyHistogram renderLatency = new LatencyHistogram("render");
+   /** Encoded to written to a client's socket. */
+   private final LatencyHistogram outboundLatency = new LatencyHistogram("outbound");
+   /** Port the metrics endpoint listens on (loopback only). */
+   public static final int METRICS_PORT = PORT + 1;
+   private final MetricsRegistry metrics = new MetricsRegistry();
+   private final MetricsRegistry.LabeledCounter eventsIn = metrics.counter(
+         "netsketch_events_in_total", "DrawEvents received from clients.", "type");
+   private final MetricsRegistry.LabeledCounter eventsOut = metrics.counter(
+         "netsketch_events_out_total", "DrawEvents queued for clients, counting each recipient.", "type");
+   private final MetricsRegistry.LabeledCounter ephemeralDatagrams = metrics.counter(
+         "netsketch_ephemeral_datagrams_total", "Cursor and preview datagrams, by what became of them.", "result");
+   private final MetricsRegistry.LabeledCounter ingressDisconnects = metrics.counter(
+         "netsketch_ingress_disconnects_total", "Clients disconnected for staying over the ingress limits.", "board");
+   private final AtomicInteger nextClientId = new AtomicInteger();
 
    public NetSketchServer() {
-      initWindow();
+      this(true);
+   }
+
+   public NetSketchServer(boolean allowCompression) {
+      this(PORT, allowCompression);
+   }
+
+   /**
+    * Runs a server on the given port, with its metrics on the next one up;
+    * several servers on one machine need different ports.
+    */
+   public NetSketchServer(int port, boolean allowCompression) {
+      this(port, allowCompression, null);
+   }
+
+   /**
+    * Runs a server that stands by for a primary server, keeping a copy of
+    * every board until the primary goes away, and then takes over.
+    *
+    * @param primary "host:port" of the primary, or null to be a primary
+    */
+   public NetSketchServer(int port, boolean allowCompression, String primary) {
+      this(port, allowCompression, primary, null);
+   }
+
+   /**
+    * Runs a server that may stand by for a primary, relay from the server
+    * above it, or both.
+    *
+    * @param primary "host:port" of the primary, or null to be a primary
+    * @param upstream "host:port" of the server to relay every board from
+    *        (or several, separated by commas), or null to be the root.
+    *        A relay connects upstream once per board and fans the board
+    *        out to its own clients, so relays can be stacked into a tree.
+    */
+   public NetSketchServer(int port, boolean allowCompression, String primary, String upstream) {
+      this(port, allowCompression, primary, upstream, IngressLimiter.Limits.DEFAULT);
+   }
+
+   /**
+    * Runs a server as above, limiting how fast each client may send.
+    *
+    * @param ingressLimits events and bytes per second allowed each client
+    *        before it is throttled (see {@link IngressLimiter})
+    */
+   public NetSketchServer(int port, boolean allowCompression, String primary, String upstream,
+                          IngressLimiter.Limits ingressLimits) {
+      this(port, allowCompression, primary, upstream, ingressLimits, 0);
+   }
+
+   /**
+    * Runs a server as above, retiring boards nobody has used for a while.
+    *
+    * @param boardIdleMillis how long a board (other than the default one)
+    *        may go without clients before it is dropped with its history,
+    *        making room for new boards; 0 to keep every board
+    */
+   public NetSketchServer(int port, boolean allowCompression, String primary, String upstream,
+                          IngressLimiter.Limits ingressLimits, long boardIdleMillis) {
+      this(allowCompression, port + 1, primary, upstream, ingressLimits, boardIdleMillis);
+      if (primary != null) {
+         isStandby = true;
+         Thread standby = new Thread(this::standBy, "Standby");
+         standby.setDaemon(true);
+         standby.start();
+      }
       boolean testing = false;
       if (testing) {
          DrawEvent de = new DrawEvent("server", new Point2D.Double(0.5, 0.5),
                null, Color.GREEN, 0.005,
                DrawEvent.DrawEventType.POINT);
-         de.draw(draw);
-         drawEvents.add(de);
+         boardFor(Handshake.DEFAULT_BOARD).publish(de, System.nanoTime());
       }
-      try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+      try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+         // Accepting through a channel gives each client a SocketChannel
+         // that the writer threads can hand batches to in one gathering write.
+         serverChannel.bind(new InetSocketAddress(port));
+         ServerSocket serverSocket = serverChannel.socket();
          System.out.println("Server details:");
          System.out.println("Port: " + serverSocket.getLocalPort());
          System.out.println("InetAddress: " + serverSocket.getInetAddress());
          System.out.println("Local socket Address: " + serverSocket.getLocalSocketAddress());
          System.out.println("Server: listening");
-         // Wait for new connections
-         while (true) {
-            NetSketchServerThread thread = new NetSketchServerThread(serverSocket.accept());
-            synchronized (threads) {
-               threads.add(thread);
-            }
-            thread.start();
+         openDatagrams(port);
+         Thread overloadThread = new Thread(this::overloadLoop, "Overload");
+         overloadThread.setDaemon(true);
+         overloadThread.start();
+         if (boardIdleMillis > 0) {
+            Thread retireThread = new Thread(this::retireLoop, "BoardRetirer");
+            retireThread.setDaemon(true);
+            retireThread.start();
          }
+         serve(serverChannel);
       } catch (IOException ioe) {
          ioe.printStackTrace();
       }
       isServerAlive = false;
    }
 
+   /**
+    * Sets up the window (unless headless) and metrics without accepting
+    * connections yet.
+    *
+    * @param metricsPort port for the metrics endpoint, or -1 for none
+    */
+   private NetSketchServer(boolean allowCompression, int metricsPort, String primary, String upstream,
+                           IngressLimiter.Limits ingressLimits, long boardIdleMillis) {
+      if (primary != null && sharedSecret == null) {
+         throw new IllegalStateException("A standby needs " + Handshake.SECRET_ENV + ", the same as the primary's");
+      }
+      this.allowCompression = allowCompression;
+      this.ingressLimits = ingressLimits;
+      this.boardIdleMillis = boardIdleMillis;
+      this.primary = primary;
+      this.upstream = upstream;
+      for (int i = 0; i < renderWorkers.length; i++) {
+         String workerName = "BoardWorker-" + i;
+         renderWorkers[i] = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, workerName);
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+      if (!GraphicsEnvironment.isHeadless()) {
+         initWindow();
+      }
+      boardFor(Handshake.DEFAULT_BOARD);
+      initMetrics(metricsPort);
+   }
+
+   /**
+    * Starts a server on a free loopback port, accepting connections on a
+    * daemon thread, without a metrics endpoint. For benchmarks and other
+    * in-process use; stop it with {@link #shutdown()}.
+    */
+   static NetSketchServer startInProcess(boolean allowCompression) throws IOException {
+      // Benchmarks flood on purpose
+      NetSketchServer server = new NetSketchServer(allowCompression, -1, null, null,
+            IngressLimiter.Limits.UNLIMITED, 0);
+      ServerSocketChannel serverChannel = ServerSocketChannel.open();
+      serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      server.serverChannel = serverChannel;
+      Thread acceptor = new Thread(() -> {
+         try {
+            server.serve(serverChannel);
+         } catch (IOException e) {
+            if (server.isServerAlive) e.printStackTrace(); // else closed by shutdown()
+         }
+         server.isServerAlive = false;
+      }, "NetSketchServer-accept");
+      acceptor.setDaemon(true);
+      acceptor.start();
+      return server;
+   } // startInProcess
+
+   /** Clients currently receiving broadcasts. */
+   int getClientCount() {
+      return boards.values().stream().mapToInt(Board::getClientCount).sum();
+   }
+
+   /** Port of a server from {@link #startInProcess(boolean)}. */
+   int getPort() {
+      return serverChannel.socket().getLocalPort();
+   }
+
+   /** Stops accepting and disconnects every client. */
+   void shutdown() {
+      isServerAlive = false;
+      try {
+         if (serverChannel != null) serverChannel.close();
+      } catch (IOException e) {
+         System.err.println("Unable to close server channel: " + e.getMessage());
+      }
+      forEachClient(thread -> {
+         try {
+            thread.socket.close(); // its run() sees the exception and cleans up
+         } catch (IOException e) {
+            System.err.println("Unable to close socket: " + e.getMessage());
+         }
+      });
+      for (Board board : boards.values()) {
+         if (board.uplink != null) board.uplink.close();
+      }
+      for (ExecutorService worker : renderWorkers) {
+         worker.shutdown();
+      }
+      if (datagrams != null) {
+         try {
+            datagrams.close();
+         } catch (IOException e) {
+            System.err.println("Unable to close datagram channel: " + e.getMessage());
+         }
+      }
+      metrics.stopHttp();
+   } // shutdown
+
+   /** Listens for cursor and preview datagrams on the UDP port with the same number. */
+   private void openDatagrams(int port) {
+      try {
+         datagrams = DatagramChannel.open();
+         datagrams.bind(new InetSocketAddress(port));
+      } catch (IOException e) {
+         System.err.println("No UDP side channel (" + e.getMessage() + "); cursors are off");
+         datagrams = null;
+         return;
+      }
+      Thread thread = new Thread(this::ephemeralLoop, "Ephemeral");
+      thread.setDaemon(true);
+      thread.start();
+      Thread presence = new Thread(this::presenceLoop, "Presence");
+      presence.setDaemon(true);
+      presence.start();
+   }
+
+   /**
+    * Lets the overload controller check the load every
+    * {@link OverloadController#TICK_MILLIS}, and shows canvases whose
+    * last batch was left unshown to keep to its show interval.
+    */
+   private void overloadLoop() {
+      while (isServerAlive) {
+         try {
+            Thread.sleep(OverloadController.TICK_MILLIS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         overload.tick();
+         for (Board board : boards.values()) {
+            if (board.isShowPending) board.worker.execute(board::showIfPending);
+         }
+      }
+   } // overloadLoop
+
+   /** Bytes waiting in every client's writer. */
+   private long totalQueuedBytes() {
+      long[] total = {0};
+      forEachClient(thread -> total[0] += thread.writer.getQueuedBytes());
+      return total[0];
+   }
+
+   /** Events waiting to be drawn on every board's canvas. */
+   private long renderBacklog() {
+      return boards.values().stream().mapToLong(board -> board.pendingCount.get()).sum();
+   }
+
+   /** Redraws the canvases from history once the controller stops deferring. */
+   private void overloadChanged(OverloadController.Level old) {
+      if (old != OverloadController.Level.DEFER) return;
+      for (Board board : boards.values()) {
+         board.worker.execute(board::redraw);
+      }
+   }
+
+   /**
+    * Forwards each client's preview datagrams to the rest of its board,
+    * and keeps its latest cursor for {@link #presenceLoop}, dropping any
+    * update older than one already seen.
+    */
+   private void ephemeralLoop() {
+      ByteBuffer in = ByteBuffer.allocate(Ephemeral.MAX_DATAGRAM);
+      ByteBuffer out = ByteBuffer.allocate(Ephemeral.MAX_DATAGRAM + 256);
+      while (isServerAlive) {
+         try {
+            in.clear();
+            SocketAddress from = datagrams.receive(in);
+            in.flip();
+            NetSketchServerThread sender = (in.remaining() >= 17) ? udpClients.get(in.getLong()) : null;
+            if (sender == null) {
+               ephemeralDatagrams.increment("unknown");
+               continue;
+            }
+            byte kind = in.get();
+            long seq = in.getLong();
+            if (kind < 0 || kind >= Ephemeral.KINDS || seq <= sender.lastEphemeralSeq[kind]) {
+               ephemeralDatagrams.increment("stale");
+               continue;
+            }
+            sender.lastEphemeralSeq[kind] = seq;
+            sender.udpAddress = from;
+            sender.udpHeardAt = System.currentTimeMillis();
+            ephemeralDatagrams.increment("received");
+            if (kind == Ephemeral.HELLO) continue;
+            if (kind == Ephemeral.CURSOR) {
+               if (in.remaining() < 2 * Float.BYTES) continue;
+               sender.cursorX = in.getFloat();
+               sender.cursorY = in.getFloat();
+               sender.board.isPresenceChanged = true;
+               continue;
+            }
+            out.clear();
+            Ephemeral.writeServerHeader(out, kind, seq, sender.udpSender, sender.clientName);
+            out.put(in).flip();
+            for (NetSketchServerThread peer : sender.board.getClients()) {
+               SocketAddress to = peer.udpAddress;
+               if (peer != sender && to != null) {
+                  datagrams.send(out.duplicate(), to);
+                  ephemeralDatagrams.increment("forwarded");
+               }
+            }
+         } catch (ClosedChannelException e) {
+            return;
+         } catch (IOException e) {
+            System.err.println("Ephemeral: " + e.getMessage());
+         } catch (RuntimeException e) {
+            // One bad datagram mustn't stop cursors and previews for everyone
+            System.err.println("Ephemeral: dropped a datagram: " + e);
+            ephemeralDatagrams.increment("failed");
+         }
+      }
+   } // ephemeralLoop
+
+   /**
+    * Sends each board its clients' cursors, at most once every
+    * {@link Ephemeral#PRESENCE_MILLIS} however often they move, and
+    * again now and then in case the last update was lost.
+    */
+   private void presenceLoop() {
+      ByteBuffer out = ByteBuffer.allocate(Ephemeral.MAX_DATAGRAM);
+      while (isServerAlive) {
+         try {
+            Thread.sleep(Ephemeral.PRESENCE_MILLIS);
+            long now = System.currentTimeMillis();
+            for (Board board : boards.values()) {
+               if (!board.isPresenceChanged && now - board.presenceSentAt < Ephemeral.PRESENCE_REFRESH_MILLIS) {
+                  continue;
+               }
+               board.isPresenceChanged = false;
+               board.presenceSentAt = now;
+               board.presenceSeq++;
+               List<NetSketchServerThread> clients = board.getClients();
+               List<ByteBuffer> updates = new ArrayList<>();
+               int countAt = startPresence(out, board.presenceSeq);
+               for (NetSketchServerThread client : clients) {
+                  if (Float.isNaN(client.cursorX) || now - client.udpHeardAt > Ephemeral.EXPIRE_MILLIS) continue;
+                  if (!Ephemeral.addPresence(out, countAt, client.udpSender, client.clientName,
+                        client.cursorX, client.cursorY)) {
+                     if (out.getShort(countAt) > 0) {
+                        updates.add(copyOf(out));
+                        countAt = startPresence(out, board.presenceSeq);
+                     }
+                     if (!Ephemeral.addPresence(out, countAt, client.udpSender, client.clientName,
+                           client.cursorX, client.cursorY)) {
+                        ephemeralDatagrams.increment("oversized"); // the name doesn't fit even on its own
+                     }
+                  }
+               }
+               if (out.getShort(countAt) == 0 && updates.isEmpty()) continue;
+               updates.add(copyOf(out));
+               for (NetSketchServerThread client : clients) {
+                  SocketAddress to = client.udpAddress;
+                  if (to == null) continue;
+                  for (ByteBuffer update : updates) {
+                     datagrams.send(update.duplicate(), to);
+                     ephemeralDatagrams.increment("presence");
+                  }
+               }
+            }
+         } catch (ClosedChannelException | InterruptedException e) {
+            return;
+         } catch (IOException e) {
+            System.err.println("Presence: " + e.getMessage());
+         } catch (RuntimeException e) {
+            System.err.println("Presence: " + e);
+         }
+      }
+   } // presenceLoop
+
+   /** Clears the buffer for a presence update with no cursors yet; returns where the count is. */
+   private static int startPresence(ByteBuffer out, long seq) {
+      out.clear();
+      Ephemeral.writeServerHeader(out, Ephemeral.PRESENCE, seq, 0, "");
+      int countAt = out.position();
+      out.putShort((short) 0);
+      return countAt;
+   }
+
+   private static ByteBuffer copyOf(ByteBuffer out) {
+      ByteBuffer copy = ByteBuffer.allocate(out.position());
+      copy.put(out.duplicate().flip()).flip();
+      return copy;
+   }
+
+   /** Accepts clients until the channel is closed. */
+   private void serve(ServerSocketChannel serverChannel) throws IOException {
+      while (isServerAlive) {
+         NetSketchServerThread thread = new NetSketchServerThread(serverChannel.accept());
+         thread.start();
+      }
+   }
+
    private void initWindow() {
       window = new JFrame("NetSketch Server");
       window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
       window.setLayout(new BoxLayout(window.getContentPane(), BoxLayout.LINE_AXIS));
-      // Add the draw canvas
-      window.add(draw.getJLabel());
+      // Add the draw canvas of the chosen board
+      canvasPanel = new JPanel(new BorderLayout());
+      window.add(canvasPanel);
       // Add the controls to the right
       Box controlBox = Box.createVerticalBox();
       window.add(controlBox);
       controlBox.add(Box.createVerticalGlue());
+      boardChooser = new JComboBox<>();
+      boardChooser.setMaximumSize(new Dimension(200, 30));
+      boardChooser.addActionListener(e -> {
+         Board board = boards.get((String) boardChooser.getSelectedItem());
+         if (board != null) showBoard(board);
+      });
+      controlBox.add(new JLabel("Board:"));
+      controlBox.add(boardChooser);
+      JButton latencyBtn = new JButton("Latency report");
+      latencyBtn.addActionListener(e -> System.out.println(latencyReport()));
+      controlBox.add(latencyBtn);
       controlBox.add(Box.createVerticalGlue());
       // Finalize
       window.pack();
       window.setVisible(true);
    }
 
-   private void broadcast(DrawEvent de) {
-      synchronized (threads) {
-         threads.forEach(thread -> thread.send(de));
-         threads.removeIf(thread -> !thread.continueThread);
+   /**
+    * Returns the named board for a client, or null if it would be a new
+    * one and there are already {@link #MAX_BOARDS} (even after retiring
+    * idle ones, if boards are retired at all).
+    */
+   private Board boardForClient(String name) {
+      if (!boards.containsKey(name) && boards.size() >= MAX_BOARDS) {
+         retireIdleBoards();
+      }
+      // Checked and created under one lock, so handshakes racing for new
+      // boards can't both get the last place (compute only locks one bin).
+      synchronized (boards) {
+         if (!boards.containsKey(name) && boards.size() >= MAX_BOARDS) return null;
+         return boardFor(name);
+      }
+   }
+
+   /** A sequence number from a handshake, or -1 if there is none or it isn't a number. */
+   private static long parseSequence(String seq) {
+      if (seq == null) return -1;
+      try {
+         return Math.max(-1, Long.parseLong(seq));
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   /** Retires every board but the default one that has had no clients for {@link #boardIdleMillis}. */
+   private void retireIdleBoards() {
+      // A standby's boards are copies of the primary's, which retires its own
+      if (isStandby || boardIdleMillis <= 0) return;
+      long now = System.currentTimeMillis();
+      for (Board board : boards.values()) {
+         if (!board.name.equals(Handshake.DEFAULT_BOARD)) {
+            board.retireIfIdle(now, boardIdleMillis);
+         }
+      }
+   }
+
+   /** Checks for idle boards every {@link #RETIRE_CHECK_MILLIS}. */
+   private void retireLoop() {
+      while (isServerAlive) {
+         try {
+            Thread.sleep(RETIRE_CHECK_MILLIS);
+         } catch (InterruptedException e) {
+            return;
+         }
+         retireIdleBoards();
       }
    }
 
+   /** Returns the named board, creating it (and listing it in the window) if it is new. */
+   private Board boardFor(String name) {
+      Board found = boards.computeIfAbsent(name, n -> {
+         Board board = new Board(n, renderWorkers[Math.floorMod(n.hashCode(), renderWorkers.length)]);
+         System.out.println("New board: " + n);
+         if (upstream != null) {
+            board.uplink = new RelayUplink(n, upstream, de -> board.publish(de, System.nanoTime()));
+            board.uplink.start();
+         }
+         if (window != null) {
+            SwingUtilities.invokeLater(() -> boardChooser.addItem(n)); // the first one added is shown
+         }
+         return board;
+      });
+      found.usedAt = System.currentTimeMillis();
+      return found;
+   }
+
+   /** Puts the board's canvas in the window; Swing thread only. */
+   private void showBoard(Board board) {
+      canvasPanel.removeAll();
+      canvasPanel.add(board.canvas);
+      window.pack();
+      canvasPanel.repaint();
+   }
+
+   /**
+    * Streams every board to a standby server until it disconnects; runs
+    * on the standby's server thread.
+    */
+   private void replicateTo(OutboundWriter writer, String name) throws InterruptedException {
+      ReplicaLink link = new ReplicaLink(name, writer);
+      replicas.add(link);
+      System.out.println("Replicating to " + name);
+      // Boards with new events sync themselves; this catches the quiet ones.
+      for (Board board : boards.values()) {
+         synchronized (board.drawEvents) {
+            link.sync(board);
+         }
+      }
+      while (isServerAlive && writer.isOpen()) {
+         link.enqueue(Replication.heartbeat());
+         Thread.sleep(Replication.HEARTBEAT_MILLIS);
+      }
+      replicas.remove(link);
+      System.out.println("Stopped replicating to " + name);
+   } // replicateTo
+
+   /**
+    * Copies every board of {@link #primary} until the primary goes
+    * quiet, then takes over. Keeps trying to reach the primary until it
+    * first answers; a primary that restarts later starts out empty, so
+    * this server never goes back to standing by.
+    */
+   private void standBy() {
+      int colon = primary.lastIndexOf(':');
+      String host = primary.substring(0, colon);
+      int port = Integer.parseInt(primary.substring(colon + 1));
+      Map<String, DrawEventCodec.Decoder> decoders = new HashMap<>();
+      try (Socket socket = connectToPrimary(host, port)) {
+         socket.setSoTimeout(Replication.TIMEOUT_MILLIS);
+         new Handshake("standby").with(Handshake.REPLICATE, "true").with(Handshake.RELAY, sharedSecret)
+               .writeConnect(new DataOutputStream(socket.getOutputStream()));
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         if (!Handshake.readAccept(in).has(Handshake.REPLICATE, "true")) {
+            throw new IOException(primary + " does not replicate");
+         }
+         System.out.println("Standing by for " + primary);
+         while (isServerAlive) {
+            Replication.Message message = Replication.read(in);
+            if (message.op == Replication.SYNC) {
+               boardFor(message.board).restart(message.epoch, message.seq);
+               decoders.put(message.board, new DrawEventCodec.Decoder());
+            } else if (message.op == Replication.FRAME) {
+               DrawEventCodec.Decoder decoder = decoders.get(message.board);
+               if (decoder == null) {
+                  throw new IOException("Events for board " + message.board + " before its history");
+               }
+               DrawEvent de = decoder.read(message.frame);
+               if (de != null) {
+                  boardFor(message.board).publish(de, System.nanoTime());
+               }
+            } else if (message.op == Replication.RETIRE) {
+               Board board = boards.get(message.board);
+               if (board != null) {
+                  board.retire();
+                  System.out.println("Retired board " + message.board + " with the primary");
+               }
+               decoders.remove(message.board);
+            }
+            replicationLagMicros = LatencyHistogram.epochMicros() - message.sentAt;
+         }
+      } catch (IOException e) {
+         System.err.println("Lost primary " + primary + ": " + e);
+      } catch (InterruptedException e) {
+         return;
+      }
+      isStandby = false;
+      replicationLagMicros = -1;
+      System.out.println("Taking over from " + primary);
+   } // standBy
+
+   private Socket connectToPrimary(String host, int port) throws InterruptedException {
+      while (true) {
+         try {
+            return new Socket(host, port);
+         } catch (IOException e) {
+            System.err.println("Waiting for primary " + primary + ": " + e.getMessage());
+            Thread.sleep(Replication.HEARTBEAT_MILLIS);
+         }
+      }
+   }
+
+   /** Registers the gauges and summaries and starts the metrics endpoint (unless port is -1). */
+   private void initMetrics(int port) {
+      metrics.gauge("netsketch_boards", "Boards created since the server started.", () -> boards.size());
+      metrics.gauge("netsketch_clients_connected", "Clients receiving broadcasts, per board.",
+            samples -> boards.values().forEach(board ->
+                  samples.add(board.getClientCount(), "board", board.name)));
+      metrics.gauge("netsketch_history_events", "DrawEvents since the last clear, replayed to new clients.",
+            samples -> boards.values().forEach(board -> {
+               synchronized (board.drawEvents) {
+                  samples.add(board.drawEvents.size(), "board", board.name);
+               }
+            }));
+      metrics.gauge("netsketch_history_bytes", "Encoded size of each board's history.",
+            samples -> boards.values().forEach(board -> {
+               synchronized (board.drawEvents) {
+                  samples.add(board.historyBytes, "board", board.name);
+               }
+            }));
+      metrics.counter("netsketch_client_bytes_in_total", "Encoded bytes received from each client.",
+            samples -> forEachClient(thread -> samples.add(thread.bytesIn, thread.labels())));
+      metrics.counter("netsketch_client_bytes_out_total", "Bytes written to each client, after compression.",
+            samples -> forEachClient(thread -> samples.add(thread.writer.getBytesWritten(), thread.labels())));
+      metrics.counter("netsketch_ingress_throttled_total", "Reads from each client held back by its ingress limits.",
+            samples -> forEachClient(thread -> samples.add(thread.limiter.getThrottleCount(), thread.labels())));
+      metrics.counter("netsketch_ingress_throttled_seconds_total", "Time spent not reading from each client.",
+            samples -> forEachClient(thread -> samples.add(thread.limiter.getThrottledSeconds(), thread.labels())));
+      metrics.counter("netsketch_outbound_purged_frames_total",
+            "Frames not sent to each client because a CLEAR behind them made them pointless.",
+            samples -> forEachClient(thread -> samples.add(thread.writer.getFramesPurged(), thread.labels())));
+      metrics.gauge("netsketch_flow_send_credit",
+            "Events each client with flow control will still take from the server.",
+            samples -> forEachClient(thread -> {
+               if (thread.grants != null) samples.add(thread.writer.getCredit(), thread.labels());
+            }));
+      metrics.counter("netsketch_flow_stalled_seconds_total",
+            "Time each client's writer had events to send but no credit.",
+            samples -> forEachClient(thread -> {
+               if (thread.grants != null) samples.add(thread.writer.getStalledSeconds(), thread.labels());
+            }));
+      metrics.counter("netsketch_flow_granted_total", "Events each client with flow control was allowed to send.",
+            samples -> forEachClient(thread -> {
+               if (thread.grants != null) {
+                  samples.add(FlowControl.SERVER_WINDOW + thread.grants.getGranted(), thread.labels());
+               }
+            }));
+      metrics.gauge("netsketch_overload_level",
+            "0 at full fidelity; 1 merging segments, 2 thinning strokes, 3 also deferring canvas drawing.",
+            () -> overload.getLevel().ordinal());
+      metrics.counter("netsketch_overload_changes_total", "Times the overload level went up or down.",
+            samples -> samples.add(overload.getChanges()));
+      metrics.counter("netsketch_overload_merged_segments_total",
+            "Line segments merged into the one before them while overloaded.",
+            samples -> samples.add(overload.getSegmentsMerged()));
+      metrics.counter("netsketch_overload_deferred_draws_total",
+            "Events not drawn on the server canvas when they arrived, while overloaded.",
+            samples -> samples.add(overload.getDrawsDeferred()));
+      metrics.gauge("netsketch_render_backlog_events", "Events waiting to be drawn on each board's canvas.",
+            samples -> boards.values().forEach(board ->
+                  samples.add(board.pendingCount.get(), "board", board.name)));
+      metrics.gauge("netsketch_outbound_queue_frames", "Frames waiting in each client's writer.",
+            samples -> forEachClient(thread -> samples.add(thread.writer.getQueueDepth(), thread.labels())));
+      metrics.gauge("netsketch_outbound_queue_bytes", "Bytes waiting in each client's writer.",
+            samples -> forEachClient(thread -> samples.add(thread.writer.getQueuedBytes(), thread.labels())));
+      metrics.gauge("netsketch_standby", "1 while standing by for a primary, 0 once serving clients.",
+            () -> isStandby ? 1 : 0);
+      metrics.gauge("netsketch_replication_lag_seconds",
+            "On a standby: primary send time to applied here, for the last message (heartbeats included).",
+            samples -> {
+               if (replicationLagMicros >= 0) samples.add(replicationLagMicros / 1e6);
+            });
+      metrics.gauge("netsketch_replication_queue_bytes", "On a primary: bytes waiting to go to each standby.",
+            samples -> replicas.forEach(link -> samples.add(link.writer.getQueuedBytes(), "replica", link.name)));
+      metrics.gauge("netsketch_relay_connected", "On a relay: 1 while each board's uplink is connected.",
+            samples -> forEachUplink((board, uplink) ->
+                  samples.add(uplink.isConnected() ? 1 : 0, "board", board.name)));
+      metrics.gauge("netsketch_relay_outbox_events", "On a relay: events waiting to go upstream, per board.",
+            samples -> forEachUplink((board, uplink) ->
+                  samples.add(uplink.getQueueDepth(), "board", board.name)));
+      metrics.counter("netsketch_relay_dropped_total", "On a relay: events not sent upstream, per board.",
+            samples -> forEachUplink((board, uplink) ->
+                  samples.add(uplink.getEventsDropped(), "board", board.name)));
+      metrics.summary("netsketch_uplink_seconds", "Client timestamp to server receive.", uplinkLatency);
+      metrics.summary("netsketch_broadcast_seconds", "Receive to queued for every client.", broadcastLatency);
+      metrics.summary("netsketch_render_seconds", "Drawing an event on the server canvas.", renderLatency);
+      metrics.summary("netsketch_outbound_seconds", "Encoded to written to a client.", outboundLatency);
+      if (port < 0) return;
+      try {
+         metrics.startHttp(port);
+      } catch (IOException e) {
+         System.err.println("Unable to start metrics endpoint: " + e.getMessage());
+      }
+   } // initMetrics
+
+   /** Runs the action for a snapshot of the connected clients of every board. */
+   private void forEachClient(Consumer<NetSketchServerThread> action) {
+      for (Board board : boards.values()) {
+         board.getClients().forEach(action);
+      }
+   }
+
+   private void forEachUplink(BiConsumer<Board, RelayUplink> action) {
+      for (Board board : boards.values()) {
+         if (board.uplink != null) action.accept(board, board.uplink);
+      }
+   }
+
+   /** Names (or their starts) of the threads a server runs. */
+   private static final String[] THREAD_NAMES = {"NetSketchServerThread-", "OutboundWriter-", "BoardWorker-",
+         "NetSketchServer-accept", "Ephemeral", "Presence", "Overload", "BoardRetirer"};
+
+   /** Whether the thread is one a server runs, going by its name; for measuring the server's CPU. */
+   static boolean isServerThread(String threadName) {
+      for (String name : THREAD_NAMES) {
+         if (threadName.startsWith(name)) return true;
+      }
+      return false;
+   }
+
+   /** Receive to queued for every client; what fan-out costs the sender. */
+   LatencyHistogram getBroadcastLatency() {
+      return broadcastLatency;
+   }
+
+   /** Percentiles for each stage of the server's event pipeline. */
+   public String latencyReport() {
+      return "Server latency:\n"
+            + "  " + uplinkLatency.summary() + "\n"
+            + "  " + broadcastLatency.summary() + "\n"
+            + "  " + renderLatency.summary() + "\n"
+            + "  " + outboundLatency.summary();
+   }
+
+   /**
+    * Optional arguments: the port to listen on, for running several
+    * servers, then {@code standby=host:port} to stand by for a primary
+    * and/or {@code relay=host:port} to relay from the server above,
+    * {@code limit=events[,bytes]} for each client's rate limits per
+    * second (0 for none), and {@code retire=minutes} to drop boards
+    * nobody has used for that long (by default none are).
+    */
    public static void main(String[] args) {
-      NetSketchServer server = new NetSketchServer();
+      int port = (args.length > 0) ? Integer.parseInt(args[0]) : PORT;
+      String primary = null;
+      String upstream = null;
+      IngressLimiter.Limits limits = IngressLimiter.Limits.DEFAULT;
+      long boardIdleMillis = 0;
+      for (int i = 1; i < args.length; i++) {
+         if (args[i].startsWith("standby=")) {
+            primary = args[i].substring("standby=".length());
+         } else if (args[i].startsWith("relay=")) {
+            upstream = args[i].substring("relay=".length());
+         } else if (args[i].startsWith("limit=")) {
+            limits = IngressLimiter.Limits.parse(args[i].substring("limit=".length()));
+         } else if (args[i].startsWith("retire=")) {
+            boardIdleMillis = Long.parseLong(args[i].substring("retire=".length())) * 60 * 1000;
+         } else {
+            throw new IllegalArgumentException("Unknown argument: " + args[i]
+                  + "; expected standby=host:port, relay=host:port, limit=events[,bytes] or retire=minutes");
+         }
+      }
+      NetSketchServer server = new NetSketchServer(port, true, primary, upstream, limits, boardIdleMillis);
    }
 }
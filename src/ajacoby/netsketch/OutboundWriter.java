@@ -0,0 +1,457 @@
+package ajacoby.netsketch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/**
+ * Writer thread for one connection: queues already-encoded frames and
+ * flushes them with a single gathering write once the batch fills or
+ * the linger timer runs out.
+ * <p>
+ * Frames are shared between writers; the queue holds its own reference
+ * to each frame and releases it once the frame is written or dropped.
+ * <p>
+ * Lingering trades a bounded amount of latency (at most
+ * {@link #LINGER_NANOS}) for far fewer write syscalls when events
+ * arrive in bursts.
+ * <p>
+ * On compressed connections each batch is deflated into one buffer with
+ * SYNC_FLUSH instead, so the peer can decode everything written so far.
+ * <p>
+ * A CLEAR is a barrier: frames still queued in front of it are dropped,
+ * since the peer would only wipe them, so a client that fell behind
+ * catches up at once.
+ * <p>
+ * With flow control (see {@link FlowControl}), frames carrying events
+ * are only written while the client has granted credit for them; the
+ * rest wait in the queue, where a CLEAR can still drop them. Control
+ * frames go ahead of the queue and need no credit.
+ * <p>
+ * A client's queue is limited (see {@link #limitQueue}): one that lets
+ * it grow past the limit, by reading too slowly or granting no credit,
+ * is disconnected, and gets the board's history afresh when it
+ * reconnects.
+ */
+class OutboundWriter extends Thread {
+   /** Maximum number of frames handed to one gathering write. */
+   static final int MAX_BATCH_FRAMES = 64;
+   /** Flush immediately once this many bytes are waiting. */
+   static final int MAX_BATCH_BYTES = 32 * 1024;
+   /** How long to wait for more frames after the first one arrives. */
+   static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+   /** Most bytes queued for a client before it is disconnected; room for a big board's history. */
+   static final long MAX_QUEUED_BYTES = 64L << 20;
+   /** Most frames queued for a client before it is disconnected. */
+   static final int MAX_QUEUED_FRAMES = 1 << 20;
+
+   private final String clientName;
+   private final GatheringByteChannel channel;
+   private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition notEmpty = lock.newCondition();
+   private final Condition batchFull = lock.newCondition();
+   private final Frame[] batchFrames = new Frame[MAX_BATCH_FRAMES];
+   private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_FRAMES];
+   private long queuedBytes = 0;
+   /** Limits on the queue, past which the connection is closed; guarded by lock. */
+   private long maxQueuedBytes = Long.MAX_VALUE;
+   private int maxQueuedFrames = Integer.MAX_VALUE;
+   /** Frames dropped because a CLEAR came after them; guarded by lock. */
+   private long framesPurged = 0;
+   /** Events the client will still take, or -1 without flow control; guarded by lock. */
+   private long credit = -1;
+   /** Time spent out of credit with events to send; read by the metrics thread. */
+   private volatile long stalledNanos = 0;
+   /** Bytes handed to the channel, after compression; only written by this thread. */
+   private volatile long bytesWritten = 0;
+   private volatile boolean isOpen = true;
+   /** Null unless compression was negotiated for this connection. */
+   private final Deflater deflater;
+   private ByteBuffer compressed;
+   private long deflateNanos = 0;
+   /** Where to record encode-to-written times, once the client is live. */
+   private volatile LatencyHistogram outboundLatency;
+   private volatile long liveSince = Long.MAX_VALUE;
+
+   OutboundWriter(String clientName, GatheringByteChannel channel) {
+      this(clientName, channel, null);
+   }
+
+   OutboundWriter(String clientName, GatheringByteChannel channel, Deflater deflater) {
+      super("OutboundWriter-" + clientName);
+      this.clientName = clientName;
+      this.channel = channel;
+      this.deflater = deflater;
+      if (deflater != null) {
+         compressed = ByteBuffer.allocateDirect(MAX_BATCH_BYTES);
+      }
+      setDaemon(true);
+   }
+
+   /**
+    * Queues a frame for sending. Never blocks on the network.
+    *
+    * @return false if the writer has already shut down
+    */
+   public boolean enqueue(Frame frame) {
+      lock.lock();
+      try {
+         if (!isOpen) return false;
+         queue.add(frame.retain());
+         queuedBytes += frame.size();
+         if (isOverLimit()) return false;
+         if (queue.size() == 1) {
+            notEmpty.signal();
+         }
+         if (queue.size() >= MAX_BATCH_FRAMES || queuedBytes >= MAX_BATCH_BYTES) {
+            batchFull.signal();
+         }
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   } // enqueue
+
+   /**
+    * Queues a control frame (one without events, such as CREDIT) ahead of
+    * everything else, so it isn't held up by a client slow to read.
+    *
+    * @return false if the writer has already shut down
+    */
+   public boolean enqueueControl(Frame frame) {
+      lock.lock();
+      try {
+         if (!isOpen) return false;
+         queue.addFirst(frame.retain());
+         queuedBytes += frame.size();
+         if (isOverLimit()) return false;
+         notEmpty.signal();
+         return true;
+      } finally {
+         lock.unlock();
+      }
+   } // enqueueControl
+
+   /**
+    * Limits the queue: once more than {@code maxBytes} or {@code maxFrames}
+    * are waiting, the writer shuts down and closes the channel.
+    */
+   public void limitQueue(long maxBytes, int maxFrames) {
+      lock.lock();
+      try {
+         maxQueuedBytes = maxBytes;
+         maxQueuedFrames = maxFrames;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /** Shuts down and closes the channel if the queue is over its limits; under lock. */
+   private boolean isOverLimit() {
+      if (queuedBytes <= maxQueuedBytes && queue.size() <= maxQueuedFrames) return false;
+      disconnect(queue.size() + " frame(s), " + queuedBytes + " bytes waiting");
+      return true;
+   } // isOverLimit
+
+   /** Shuts down and closes the channel, which also stops a write blocked on the client; under lock. */
+   private void disconnect(String reason) {
+      System.out.println("Disconnecting " + clientName + ": " + reason);
+      close();
+      try {
+         channel.close(); // the reader cleans up
+      } catch (IOException e) {
+         System.err.println("Unable to close channel: " + e.getMessage());
+      }
+   }
+
+   /** Turns on flow control: at most {@code window} events are written until more credit is granted. */
+   public void useCredit(long window) {
+      lock.lock();
+      try {
+         credit = window;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Lets the writer send this many more events (from the client's CREDIT
+    * records). A client that grants more than any window could hold is
+    * disconnected, since the credit would overflow.
+    */
+   public void grant(long frames) {
+      lock.lock();
+      try {
+         if (credit < 0 || !isOpen) return;
+         if (frames < 0 || frames > FlowControl.MAX_WINDOW - credit) {
+            disconnect("granted " + frames + " more on top of " + credit + " credit");
+            return;
+         }
+         credit += frames;
+         notEmpty.signal();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Queues a CLEAR. Any frames still waiting are dropped, and the
+    * barrier (see {@link DrawEventCodec#clearBarrier}) goes in their
+    * place, since the plain CLEAR frame may depend on codec state from
+    * the frames dropped.
+    *
+    * @return false if the writer has already shut down
+    */
+   public boolean enqueueClear(Frame clear, Frame barrier) {
+      lock.lock();
+      try {
+         int purged = 0;
+         for (Iterator<Frame> it = queue.iterator(); it.hasNext(); ) {
+            Frame frame = it.next();
+            if (frame.isControl()) continue; // CREDIT still counts; a SEQ is in the barrier
+            it.remove();
+            queuedBytes -= frame.size();
+            frame.release();
+            purged++;
+         }
+         if (purged == 0) {
+            return enqueue(clear);
+         }
+         framesPurged += purged;
+         return enqueue(barrier);
+      } finally {
+         lock.unlock();
+      }
+   } // enqueueClear
+
+   /**
+    * Starts recording how long frames take from being encoded to being
+    * written. Only frames encoded from now on count, so a new client's
+    * history replay doesn't show up as latency.
+    */
+   public void measureLatency(LatencyHistogram histogram) {
+      liveSince = System.nanoTime();
+      outboundLatency = histogram;
+   }
+
+   public boolean isOpen() {
+      return isOpen;
+   }
+
+   /** Frames waiting to be written. */
+   public int getQueueDepth() {
+      lock.lock();
+      try {
+         return queue.size();
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /** Bytes in the frames waiting to be written. */
+   public long getQueuedBytes() {
+      lock.lock();
+      try {
+         return queuedBytes;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /** Frames dropped from the queue by a CLEAR behind them. */
+   public long getFramesPurged() {
+      lock.lock();
+      try {
+         return framesPurged;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /** Events the client will still take, or -1 without flow control. */
+   public long getCredit() {
+      lock.lock();
+      try {
+         return credit;
+      } finally {
+         lock.unlock();
+      }
+   }
+
+   /** Time spent with events to send but no credit to send them. */
+   public double getStalledSeconds() {
+      return stalledNanos / 1e9;
+   }
+
+   /** Bytes written to the client so far, as sent on the wire. */
+   public long getBytesWritten() {
+      return bytesWritten;
+   }
+
+   /** Stops the writer; anything still queued is dropped. */
+   public void close() {
+      lock.lock();
+      try {
+         isOpen = false;
+         queue.forEach(Frame::release);
+         queue.clear();
+         queuedBytes = 0;
+         notEmpty.signal();
+         batchFull.signal();
+      } finally {
+         lock.unlock();
+      }
+   } // close
+
+   @Override
+   public void run() {
+      try {
+         while (isOpen) {
+            int count = awaitBatch();
+            if (count == 0) continue;
+            if (deflater != null) {
+               writeCompressed(count);
+            } else {
+               writeGathering(count);
+            }
+            recordLatency(count);
+            for (int i = 0; i < count; i++) {
+               batchFrames[i].release();
+            }
+            Arrays.fill(batchFrames, 0, count, null);
+            Arrays.fill(batch, 0, count, null);
+         }
+      } catch (IOException e) {
+         System.err.println("Exception writing to client: " + clientName);
+         e.printStackTrace();
+         try {
+            channel.close(); // wakes up the reader so the client gets cleaned up
+         } catch (IOException ce) {
+            System.err.println("Unable to close channel: " + ce.getMessage());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      for (Frame frame : batchFrames) {
+         if (frame != null) frame.release(); // batch cut short by a failed write
+      }
+      close();
+      if (deflater != null) {
+         System.out.println(Compression.report("Outbound compression for " + clientName,
+               deflater.getBytesRead(), deflater.getBytesWritten(), deflateNanos));
+         deflater.end();
+      }
+   } // run
+
+   private void recordLatency(int count) {
+      LatencyHistogram histogram = outboundLatency;
+      if (histogram == null) return;
+      long now = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+         long encodedAt = batchFrames[i].getEncodedAt();
+         if (encodedAt >= liveSince) {
+            histogram.record(now - encodedAt);
+         }
+      }
+   } // recordLatency
+
+   private void writeGathering(int count) throws IOException {
+      long remaining = 0;
+      for (int i = 0; i < count; i++) {
+         remaining += batch[i].remaining();
+      }
+      bytesWritten += remaining;
+      int offset = 0;
+      while (remaining > 0) {
+         remaining -= channel.write(batch, offset, count - offset);
+         while (offset < count && !batch[offset].hasRemaining()) {
+            offset++;
+         }
+      }
+   } // writeGathering
+
+   private void writeCompressed(int count) throws IOException {
+      long start = System.nanoTime();
+      compressed.clear();
+      for (int i = 0; i < count; i++) {
+         deflater.setInput(batch[i]);
+         while (!deflater.needsInput()) {
+            deflateInto(Deflater.NO_FLUSH);
+         }
+      }
+      // Keep flushing until the deflater stops filling the buffer.
+      do {
+         deflateInto(Deflater.SYNC_FLUSH);
+      } while (!compressed.hasRemaining());
+      deflateNanos += System.nanoTime() - start;
+      compressed.flip();
+      bytesWritten += compressed.remaining();
+      while (compressed.hasRemaining()) {
+         channel.write(compressed);
+      }
+   } // writeCompressed
+
+   private void deflateInto(int flush) {
+      if (compressed.remaining() < 64) {
+         ByteBuffer bigger = ByteBuffer.allocateDirect(compressed.capacity() * 2);
+         compressed.flip();
+         bigger.put(compressed);
+         compressed = bigger;
+      }
+      deflater.deflate(compressed, flush);
+   } // deflateInto
+
+   /**
+    * Waits for at least one frame that can be sent, lingers for more, then
+    * moves up to {@link #MAX_BATCH_FRAMES} frames into {@code batch},
+    * stopping at an event there is no credit for.
+    *
+    * @return number of frames moved
+    */
+   private int awaitBatch() throws InterruptedException {
+      lock.lock();
+      try {
+         while (isOpen && !canSend()) {
+            if (queue.isEmpty()) {
+               notEmpty.await();
+            } else { // out of credit
+               long start = System.nanoTime();
+               notEmpty.await();
+               stalledNanos += System.nanoTime() - start;
+            }
+         }
+         long linger = LINGER_NANOS;
+         while (isOpen && linger > 0
+               && queue.size() < MAX_BATCH_FRAMES && queuedBytes < MAX_BATCH_BYTES) {
+            linger = batchFull.awaitNanos(linger);
+         }
+         int count = 0;
+         while (count < MAX_BATCH_FRAMES && canSend()) {
+            Frame frame = queue.poll();
+            if (credit > 0 && !frame.isControl()) {
+               credit--;
+            }
+            queuedBytes -= frame.size();
+            batchFrames[count] = frame;
+            batch[count++] = frame.view();
+         }
+         return count;
+      } finally {
+         lock.unlock();
+      }
+   } // awaitBatch
+
+   /** Whether the frame at the head of the queue may be written now; under lock. */
+   private boolean canSend() {
+      Frame head = queue.peek();
+      return head != null && (credit != 0 || head.isControl());
+   }
+}
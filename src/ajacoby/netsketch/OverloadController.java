@@ -0,0 +1,166 @@
+package ajacoby.netsketch;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Trades stroke fidelity for throughput when the server can't keep up,
+ * one {@link Level} at a time, and restores it once the load subsides.
+ * <p>
+ * Every {@link #TICK_MILLIS} it compares the bytes queued for all
+ * clients and the events waiting to be drawn on the server's canvases
+ * with their high-water marks. While either is over, it goes up a level
+ * per tick; once both have stayed under half for {@link #RELAX_TICKS}
+ * ticks in a row, it comes down one.
+ */
+class OverloadController {
+   /** How often the load is checked. */
+   static final long TICK_MILLIS = 250;
+   /** Calm ticks needed before going down a level. */
+   static final int RELAX_TICKS = 8;
+   /** Bytes queued for all clients together. */
+   static final long QUEUE_BYTES_HIGH = 16L << 20;
+   /** Events waiting to be drawn on all the server's canvases together. */
+   static final long RENDER_BACKLOG_HIGH = 5000;
+   /** Most segments merged into one, so the error of a long run stays small. */
+   static final int MAX_MERGED = 8;
+
+   enum Level {
+      /** Full fidelity. */
+      NORMAL(0, 0),
+      /**
+       * Merges consecutive segments of a stroke that are already waiting
+       * to be read, where the dropped points are within a pixel of the
+       * merged line; canvases are shown at most 10 times a second.
+       */
+      MERGE(1, 100),
+      /** Also drops points further off the line; canvases shown 4 times a second. */
+      THIN(4, 250),
+      /** Also stops drawing on the server's canvases; they are redrawn from history afterwards. */
+      DEFER(4, 250);
+
+      /** How far a dropped point may be from the merged segment; 0 not to merge. */
+      final double tolerancePixels;
+      /** Least time between showing a canvas. */
+      final long showIntervalMillis;
+
+      Level(double tolerancePixels, long showIntervalMillis) {
+         this.tolerancePixels = tolerancePixels;
+         this.showIntervalMillis = showIntervalMillis;
+      }
+   } // Level
+
+   private final LongSupplier queuedBytes;
+   private final LongSupplier renderBacklog;
+   /** Called on the controller's thread with the old level after each change. */
+   private final Consumer<Level> onChange;
+   private volatile Level level = Level.NORMAL;
+   /** Only used by the controller's thread. */
+   private int calmTicks = 0;
+   // Read by the metrics thread
+   private final AtomicLong segmentsMerged = new AtomicLong();
+   private final AtomicLong drawsDeferred = new AtomicLong();
+   private volatile long changes = 0;
+
+   OverloadController(LongSupplier queuedBytes, LongSupplier renderBacklog, Consumer<Level> onChange) {
+      this.queuedBytes = queuedBytes;
+      this.renderBacklog = renderBacklog;
+      this.onChange = onChange;
+   }
+
+   Level getLevel() {
+      return level;
+   }
+
+   /** Checks the load and moves at most one level; called every {@link #TICK_MILLIS}. */
+   void tick() {
+      double pressure = Math.max(queuedBytes.getAsLong() / (double) QUEUE_BYTES_HIGH,
+            renderBacklog.getAsLong() / (double) RENDER_BACKLOG_HIGH);
+      Level old = level;
+      if (pressure >= 1) {
+         calmTicks = 0;
+         if (old.ordinal() < Level.DEFER.ordinal()) {
+            level = Level.values()[old.ordinal() + 1];
+         }
+      } else if (pressure < 0.5 && old != Level.NORMAL) {
+         if (++calmTicks >= RELAX_TICKS) {
+            calmTicks = 0;
+            level = Level.values()[old.ordinal() - 1];
+         }
+      } else {
+         calmTicks = 0;
+      }
+      if (level != old) {
+         changes++;
+         System.out.printf(Locale.ROOT, "Overload: %s -> %s (pressure %.2f)%n", old, level, pressure);
+         onChange.accept(old);
+      }
+   } // tick
+
+   /** Whether it's worth holding on to this event to merge it with the next. */
+   boolean canMerge(DrawEvent de) {
+      return level.tolerancePixels > 0 && de.getType() == DrawEvent.DrawEventType.LINE;
+   }
+
+   /**
+    * Returns {@code a} and {@code b} as one segment if the level allows it,
+    * otherwise null. Every point merged away so far has to stay within
+    * tolerance of the new segment, not just the joint of {@code a} and
+    * {@code b}, so a run of merges can't drift off the stroke.
+    *
+    * @param dropped the points already merged away inside {@code a}, empty
+    *        if it is an original segment; the joint is added on success
+    * @param canvasWidth pixels across the canvas, to scale the tolerance
+    */
+   DrawEvent merge(DrawEvent a, DrawEvent b, List<Point2D> dropped, int canvasWidth) {
+      double tolerance = level.tolerancePixels / canvasWidth;
+      if (tolerance <= 0 || dropped.size() >= MAX_MERGED
+            || a.getType() != DrawEvent.DrawEventType.LINE || b.getType() != DrawEvent.DrawEventType.LINE
+            || !a.getSource().equals(b.getSource()) || !a.getPoint2().equals(b.getPoint1())
+            || !a.getColor().equals(b.getColor()) || a.getRadius() != b.getRadius()
+            || isOff(a.getPoint1(), b.getPoint2(), a.getPoint2(), tolerance)) {
+         return null;
+      }
+      for (Point2D pt : dropped) {
+         if (isOff(a.getPoint1(), b.getPoint2(), pt, tolerance)) {
+            return null;
+         }
+      }
+      dropped.add(a.getPoint2());
+      DrawEvent de = new DrawEvent(a.getSource(), a.getPoint1(), b.getPoint2(),
+            a.getColor(), a.getRadius(), DrawEvent.DrawEventType.LINE);
+      de.setTimestamp(a.getTimestamp());
+      segmentsMerged.incrementAndGet();
+      return de;
+   } // merge
+
+   /** Whether the point is further than the tolerance from the segment. */
+   private static boolean isOff(Point2D from, Point2D to, Point2D pt, double tolerance) {
+      return Line2D.ptSegDist(from.getX(), from.getY(), to.getX(), to.getY(), pt.getX(), pt.getY()) > tolerance;
+   }
+
+   /** Counts events left undrawn on a canvas while deferring. */
+   void deferred(long draws) {
+      drawsDeferred.addAndGet(draws);
+   }
+
+   /** Segments merged into the one before them. */
+   long getSegmentsMerged() {
+      return segmentsMerged.get();
+   }
+
+   /** Events not drawn on a canvas when they arrived. */
+   long getDrawsDeferred() {
+      return drawsDeferred.get();
+   }
+
+   /** Times the level changed. */
+   long getChanges() {
+      return changes;
+   }
+}
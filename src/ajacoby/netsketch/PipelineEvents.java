@@ -0,0 +1,121 @@
+package ajacoby.netsketch;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder events for each stage of the DrawEvent pipeline.
+ * <p>
+ * The events are disabled unless a recording turns them on (see
+ * {@code netsketch.jfc} next to this file). While disabled, {@code begin()}
+ * and {@code commit()} are no-ops the JIT can remove, and callers guard
+ * any extra work with {@code shouldCommit()} or {@code isEnabled()}.
+ * Stack traces are off: these fire for every event, and the thread name
+ * already says which client it was.
+ */
+final class PipelineEvents {
+   private PipelineEvents() {}
+
+   /** Fields shared by all pipeline events. */
+   @Category({"NetSketch"})
+   @StackTrace(false)
+   abstract static class DrawEventStage extends Event {
+      @Label("Event Type")
+      String eventType;
+
+      @Label("Source")
+      @Description("Name of the client that drew the event")
+      String source;
+
+      /** Fills in the fields describing the DrawEvent. */
+      void describe(DrawEvent de) {
+         eventType = de.getType().name();
+         source = de.getSource();
+      }
+   }
+
+   @Name("netsketch.ServerReceive")
+   @Label("Server Receive")
+   @Category({"NetSketch", "Server"})
+   @Description("Reading and decoding one event from a client; includes waiting for the client to send it")
+   static final class ServerReceive extends DrawEventStage {
+      @Label("Bytes")
+      @DataAmount
+      int bytes;
+   }
+
+   @Name("netsketch.HistoryAppend")
+   @Label("History Append")
+   @Category({"NetSketch", "Server"})
+   @Description("Taking the history lock, encoding the event and adding it to the history")
+   static final class HistoryAppend extends DrawEventStage {
+      @Label("Lock Wait")
+      @Timespan
+      long lockWait;
+
+      @Label("History Size")
+      @Description("Events in the history afterwards")
+      int historySize;
+   }
+
+   @Name("netsketch.Broadcast")
+   @Label("Broadcast")
+   @Category({"NetSketch", "Server"})
+   @Description("Queueing one encoded frame for every connected client")
+   static final class Broadcast extends DrawEventStage {
+      @Label("Bytes")
+      @DataAmount
+      int bytes;
+
+      @Label("Clients")
+      int clients;
+   }
+
+   @Name("netsketch.ServerDraw")
+   @Label("Server Draw")
+   @Category({"NetSketch", "Server"})
+   @Description("Drawing one event on the server's canvas")
+   static final class ServerDraw extends DrawEventStage {
+   }
+
+   @Name("netsketch.ClientSend")
+   @Label("Client Send")
+   @Category({"NetSketch", "Client"})
+   @Description("Encoding one event and writing it to the (buffered) connection")
+   static final class ClientSend extends DrawEventStage {
+      @Label("Bytes")
+      @DataAmount
+      int bytes;
+
+      @Label("Queued")
+      @Description("Time the event waited in the outbox first")
+      @Timespan
+      long queued;
+   }
+
+   @Name("netsketch.ClientReceive")
+   @Label("Client Receive")
+   @Category({"NetSketch", "Client"})
+   @Description("Reading and decoding one event from the server; includes waiting for it")
+   static final class ClientReceive extends DrawEventStage {
+      @Label("Bytes")
+      @DataAmount
+      int bytes;
+   }
+
+   @Name("netsketch.ClientDraw")
+   @Label("Client Draw")
+   @Category({"NetSketch", "Client"})
+   @Description("Drawing one event on the client's canvas")
+   static final class ClientDraw extends DrawEventStage {
+      @Label("Local")
+      @Description("Drawn by this client rather than received from the server")
+      boolean local;
+   }
+}
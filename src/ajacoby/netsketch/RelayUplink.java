@@ -0,0 +1,202 @@
+package ajacoby.netsketch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A relay server's connection to the server above it for one board.
+ * <p>
+ * The relay is a single client upstream: it receives the board's stream
+ * once and hands every event to {@code onEvent}, which publishes it to
+ * the relay's own clients. Their events go the other way through
+ * {@link #forward}, unpublished; they come back down once the root has
+ * ordered them, so every level of the tree sees the same order.
+ * <p>
+ * A lost connection is retried with backoff, going round the upstream
+ * servers given. The uplink asks to resume after the last event it had;
+ * if the upstream can't, {@code onEvent} gets a CLEAR first, so the
+ * relay's history and its clients start over with the replayed history.
+ * Events forwarded while disconnected are dropped, as the client does.
+ * <p>
+ * The upstream only lifts its per-client ingress limits for the uplink
+ * if both share the secret in {@link Handshake#SECRET_ENV}.
+ */
+class RelayUplink extends Thread {
+   /** Most events waiting to go upstream before new ones are dropped. */
+   static final int OUTBOX_CAPACITY = 4096;
+   /** Longest wait between attempts to reconnect. */
+   private static final long MAX_RECONNECT_MILLIS = 5000;
+
+   private final String board;
+   private final String[] hosts;
+   private final int[] ports;
+   private final Consumer<DrawEvent> onEvent;
+   private final BlockingQueue<DrawEvent> outbox = new LinkedBlockingQueue<>(OUTBOX_CAPACITY);
+   private final DrawEventCodec.Decoder decoder = new DrawEventCodec.Decoder();
+   private final AtomicLong eventsDropped = new AtomicLong();
+   private String epoch;
+   /** Set after resuming until the first event arrives; only used by this thread. */
+   private boolean isResumeUnproven = false;
+   private volatile Socket socket;
+   private volatile boolean isOpen = true;
+
+   /**
+    * @param upstream "host:port" of the server above, or several separated
+    *        by commas (such as a primary and its standby)
+    */
+   RelayUplink(String board, String upstream, Consumer<DrawEvent> onEvent) {
+      super("RelayUplink-" + board);
+      this.board = board;
+      this.onEvent = onEvent;
+      String[] addresses = upstream.split(",");
+      hosts = new String[addresses.length];
+      ports = new int[addresses.length];
+      for (int i = 0; i < addresses.length; i++) {
+         String address = addresses[i].strip();
+         int colon = address.lastIndexOf(':');
+         hosts[i] = address.substring(0, colon);
+         ports[i] = Integer.parseInt(address.substring(colon + 1));
+      }
+      setDaemon(true);
+   }
+
+   /** Queues a downstream client's event for the server above. Never blocks. */
+   public void forward(DrawEvent de) {
+      if (!outbox.offer(de)) {
+         eventsDropped.incrementAndGet();
+      }
+   }
+
+   public boolean isConnected() {
+      return socket != null;
+   }
+
+   public int getQueueDepth() {
+      return outbox.size();
+   }
+
+   public long getEventsDropped() {
+      return eventsDropped.get();
+   }
+
+   public void close() {
+      isOpen = false;
+      Socket s = socket;
+      if (s != null) {
+         try {
+            s.close();
+         } catch (IOException e) {
+            System.err.println("Unable to close socket: " + e.getMessage());
+         }
+      }
+   }
+
+   /** Connects, reads the board's stream until the connection fails, and repeats. */
+   @Override
+   public void run() {
+      int current = 0;
+      long backoff = 250;
+      while (isOpen) {
+         try (Socket s = new Socket(hosts[current], ports[current])) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = handshake(s);
+            socket = s;
+            backoff = 250;
+            Thread writer = new Thread(() -> writeLoop(s), getName() + "-writer");
+            writer.setDaemon(true);
+            writer.start();
+            while (isOpen) {
+               DrawEvent de = decoder.read(in);
+               isResumeUnproven = false;
+               onEvent.accept(de);
+            }
+         } catch (IOException e) {
+            if (!isOpen) break;
+            decoder.rollback(); // it may have dropped part way through a frame
+            if (isResumeUnproven) {
+               // Resuming failed before a single event; don't keep trying it
+               decoder.forgetSequence();
+               isResumeUnproven = false;
+            }
+            System.err.println("Relay uplink for board " + board + " to " + hosts[current] + ":" + ports[current]
+                  + " failed (" + e.getMessage() + "); retrying in " + backoff + " ms");
+         }
+         socket = null;
+         current = (current + 1) % hosts.length;
+         try {
+            Thread.sleep(backoff);
+         } catch (InterruptedException e) {
+            break;
+         }
+         backoff = Math.min(backoff * 2, MAX_RECONNECT_MILLIS);
+      }
+   } // run
+
+   private DataInputStream handshake(Socket s) throws IOException {
+      Handshake request = new Handshake("relay").with(Handshake.BOARD, board);
+      String secret = Handshake.sharedSecret();
+      if (secret != null) {
+         request.with(Handshake.RELAY, secret);
+      }
+      if (epoch != null && decoder.lastSeq() >= 0) {
+         request.with(Handshake.EPOCH, epoch).with(Handshake.RESUME, Long.toString(decoder.lastSeq()));
+      }
+      request.writeConnect(new DataOutputStream(s.getOutputStream()));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      Handshake reply = Handshake.readAccept(in);
+      boolean hadHistory = epoch != null;
+      epoch = reply.get(Handshake.EPOCH);
+      isResumeUnproven = reply.get(Handshake.RESUME) != null;
+      if (reply.get(Handshake.RESUME) == null) {
+         decoder.reset();
+         if (hadHistory) {
+            // Our copy is out of date; the full history follows.
+            onEvent.accept(new DrawEvent("relay", DrawEvent.DrawEventType.CLEAR));
+         }
+      }
+      System.out.println("Relaying board " + board + " from " + s.getRemoteSocketAddress()
+            + (reply.get(Handshake.RESUME) != null ? " (resumed)" : ""));
+      return in;
+   } // handshake
+
+   /** Sends queued events in batches until this connection fails. */
+   private void writeLoop(Socket s) {
+      DrawEventCodec.Encoder encoder = new DrawEventCodec.Encoder();
+      List<DrawEvent> batch = new ArrayList<>();
+      try {
+         OutputStream out = new BufferedOutputStream(s.getOutputStream());
+         while (isOpen && socket == s) {
+            DrawEvent first = outbox.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) continue;
+            batch.add(first);
+            outbox.drainTo(batch);
+            for (DrawEvent de : batch) {
+               encoder.write(de, out);
+            }
+            out.flush();
+            batch.clear();
+         }
+      } catch (IOException e) {
+         eventsDropped.addAndGet(batch.size());
+         try {
+            s.close(); // the reader reconnects
+         } catch (IOException closeFailure) {
+            System.err.println("Unable to close socket: " + closeFailure.getMessage());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   } // writeLoop
+}
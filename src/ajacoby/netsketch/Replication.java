@@ -0,0 +1,125 @@
+package ajacoby.netsketch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Messages from a primary server to a standby replica.
+ * <p>
+ * The stream carries every board's events, so each message is
+ * {@code [int length][byte op][long epoch micros][UTF board]} and then:
+ * <ul>
+ * <li>{@code SYNC}: {@code [UTF epoch][long seq]} - the board's history
+ *     restarts at sequence number {@code seq}, after which the board's
+ *     history follows as FRAME messages</li>
+ * <li>{@code FRAME}: one frame exactly as the board's encoder made it</li>
+ * <li>{@code HEARTBEAT}: nothing; sent once a second so the replica can
+ *     tell a quiet primary from a dead one and measure its lag</li>
+ * <li>{@code RETIRE}: nothing; the primary retired the board, so the
+ *     replica drops its copy. A board of the same name that comes back
+ *     later starts with a SYNC.</li>
+ * </ul>
+ * The replica decodes each board's frames with its own decoder and
+ * publishes the events to its own board. Re-encoding the same events
+ * from the same reset point gives the same frames and sequence numbers,
+ * so a client can resume on the replica where it left off.
+ */
+final class Replication {
+   static final byte SYNC = 1;
+   static final byte FRAME = 2;
+   static final byte HEARTBEAT = 3;
+   static final byte RETIRE = 4;
+   /** How often the primary sends a heartbeat. */
+   static final long HEARTBEAT_MILLIS = 1000;
+   /** The replica takes over once the primary has been silent this long. */
+   static final int TIMEOUT_MILLIS = 5000;
+   /** Longest message accepted: a frame, its board's name and the header, with room to spare. */
+   static final int MAX_MESSAGE_BYTES = 1 << 20;
+
+   private Replication() {}
+
+   /** One message as read by the replica. */
+   static final class Message {
+      byte op;
+      /** When the primary sent it, in epoch microseconds. */
+      long sentAt;
+      String board;
+      String epoch;
+      long seq;
+      /** The frame bytes of a FRAME message. */
+      ByteBuffer frame;
+   }
+
+   static Frame sync(String board, String epoch, long seq) {
+      return message(SYNC, board, out -> {
+         out.writeUTF(epoch);
+         out.writeLong(seq);
+      });
+   }
+
+   static Frame frame(String board, Frame frame) {
+      return message(FRAME, board, out -> {
+         ByteBuffer view = frame.view();
+         byte[] bytes = new byte[view.remaining()];
+         view.get(bytes);
+         out.write(bytes);
+      });
+   }
+
+   static Frame retire(String board) {
+      return message(RETIRE, board, out -> {});
+   }
+
+   static Frame heartbeat() {
+      return message(HEARTBEAT, "", out -> {});
+   }
+
+   private interface Body {
+      void write(DataOutputStream out) throws IOException;
+   }
+
+   private static Frame message(byte op, String board, Body body) {
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(0); // length, filled in below
+         out.writeByte(op);
+         out.writeLong(LatencyHistogram.epochMicros());
+         out.writeUTF(board);
+         body.write(out);
+         byte[] buf = bytes.toByteArray();
+         ByteBuffer.wrap(buf).putInt(0, buf.length - Integer.BYTES);
+         return Frame.copyOf(buf, buf.length);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e); // only writes to memory
+      }
+   } // message
+
+   static Message read(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 1 || length > MAX_MESSAGE_BYTES) {
+         throw new IOException("Bad replication message length " + length);
+      }
+      byte[] body = new byte[length];
+      in.readFully(body);
+      ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+      DataInputStream fields = new DataInputStream(bytes);
+      Message message = new Message();
+      message.op = fields.readByte();
+      message.sentAt = fields.readLong();
+      message.board = fields.readUTF();
+      if (message.op == SYNC) {
+         message.epoch = fields.readUTF();
+         message.seq = fields.readLong();
+      } else if (message.op == FRAME) {
+         int rest = bytes.available();
+         message.frame = ByteBuffer.wrap(body, body.length - rest, rest);
+      }
+      return message;
+   } // read
+}
@@ -0,0 +1,144 @@
+package ajacoby.netsketch;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming Ramer-Douglas-Peucker simplification of an in-progress stroke.
+ * <p>
+ * Points are buffered from the last vertex sent (the anchor). As long as
+ * every buffered point lies within the tolerance of the chord from the
+ * anchor to the newest point, nothing is sent. When that stops being
+ * true, or the buffer reaches {@link #MAX_WINDOW} points, the buffer up
+ * to the previous point is simplified with RDP and its vertices are
+ * released. So a stroke is sent with at most a window's worth of delay,
+ * and no dropped point is ever farther than the tolerance from the
+ * segments that were sent.
+ * <p>
+ * The simplifier also keeps the numbers needed to judge the trade-off:
+ * points in vs. out and how far dropped points were from the result.
+ */
+final class StrokeSimplifier {
+   /** Most points held back before the window is simplified anyway. */
+   static final int MAX_WINDOW = 32;
+
+   private final double tolerance;
+   private final List<Point2D> window = new ArrayList<>();
+   private final List<Point2D> released = new ArrayList<>();
+   // Fidelity/bandwidth statistics
+   private long pointsIn = 0;
+   private long pointsOut = 0;
+   private long pointsDropped = 0;
+   private double sumDeviation = 0;
+   private double maxDeviation = 0;
+
+   /**
+    * @param tolerance maximum distance, in canvas units, between a dropped
+    *        point and the simplified stroke
+    */
+   StrokeSimplifier(double tolerance) {
+      this.tolerance = tolerance;
+   }
+
+   /** Starts a new stroke at {@code start}, which the caller sends as-is. */
+   public void begin(Point2D start) {
+      window.clear();
+      window.add(start);
+      pointsIn++;
+      pointsOut++;
+   }
+
+   /**
+    * Adds the next point of the stroke.
+    *
+    * @return vertices that can be sent now, in order; each one ends a
+    *         segment starting at the previous vertex sent
+    */
+   public List<Point2D> add(Point2D pt) {
+      released.clear();
+      pointsIn++;
+      window.add(pt);
+      if (window.size() > MAX_WINDOW || !chordFits()) {
+         // Everything up to the previous point is settled.
+         Point2D newest = window.remove(window.size() - 1);
+         release();
+         Point2D anchor = window.get(window.size() - 1);
+         window.clear();
+         window.add(anchor);
+         window.add(newest);
+      }
+      return released;
+   } // add
+
+   /** Ends the stroke, releasing whatever vertices are still held back. */
+   public List<Point2D> end() {
+      released.clear();
+      if (window.size() > 1) {
+         release();
+      }
+      window.clear();
+      return released;
+   }
+
+   /** True if every buffered point is close to the anchor-to-newest chord. */
+   private boolean chordFits() {
+      int last = window.size() - 1;
+      for (int i = 1; i < last; i++) {
+         if (distance(window.get(i), window.get(0), window.get(last)) > tolerance) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /** Simplifies the whole window and adds its vertices (minus the anchor) to released. */
+   private void release() {
+      simplify(0, window.size() - 1);
+   }
+
+   private void simplify(int first, int last) {
+      double maxDist = -1;
+      int farthest = -1;
+      for (int i = first + 1; i < last; i++) {
+         double dist = distance(window.get(i), window.get(first), window.get(last));
+         if (dist > maxDist) {
+            maxDist = dist;
+            farthest = i;
+         }
+      }
+      if (farthest >= 0 && maxDist > tolerance) {
+         simplify(first, farthest);
+         simplify(farthest, last);
+         return;
+      }
+      // Points strictly between first and last are dropped.
+      for (int i = first + 1; i < last; i++) {
+         double dist = distance(window.get(i), window.get(first), window.get(last));
+         sumDeviation += dist;
+         maxDeviation = Math.max(maxDeviation, dist);
+         pointsDropped++;
+      }
+      released.add(window.get(last));
+      pointsOut++;
+   } // simplify
+
+   private static double distance(Point2D pt, Point2D a, Point2D b) {
+      return Line2D.ptSegDist(a.getX(), a.getY(), b.getX(), b.getY(), pt.getX(), pt.getY());
+   }
+
+   /**
+    * One-line bandwidth vs. fidelity summary.
+    *
+    * @param pixelsPerUnit canvas pixels per canvas unit, to report deviation in pixels
+    */
+   public String report(double pixelsPerUnit) {
+      double kept = (pointsIn == 0) ? 100 : 100.0 * pointsOut / pointsIn;
+      double avg = (pointsDropped == 0) ? 0 : sumDeviation / pointsDropped;
+      return String.format(Locale.ROOT,
+            "Simplification: %d points in, %d sent (%.1f%%), deviation avg %.2f px, max %.2f px",
+            pointsIn, pointsOut, kept, avg * pixelsPerUnit, maxDeviation * pixelsPerUnit);
+   }
+}
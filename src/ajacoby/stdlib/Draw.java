@@ -33,6 +33,7 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.MediaTracker;
 import java.awt.RenderingHints;
@@ -54,7 +55,9 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.TreeSet;
 
@@ -226,8 +229,8 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
     private BufferedImage offscreenImage, onscreenImage;
     private Graphics2D offscreen, onscreen;
 
-    // the frame for drawing to the screen
-    private JFrame frame = new JFrame();
+    // the frame for drawing to the screen; null when running headless
+    private JFrame frame;
 
     // mouse state
     private boolean isMousePressed = false;
@@ -268,7 +271,6 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
 
    private void init() {
         if (frame != null) frame.setVisible(false);
-        frame = new JFrame();
         offscreenImage = new BufferedImage(2*width, 2*height, BufferedImage.TYPE_INT_ARGB);
         onscreenImage  = new BufferedImage(2*width, 2*height, BufferedImage.TYPE_INT_ARGB);
         offscreen = offscreenImage.createGraphics();
@@ -297,6 +299,13 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
         draw.addMouseListener(this);
         draw.addMouseMotionListener(this);
 
+        // Headless (benchmarks, servers without a display): draw to the
+        // offscreen image only
+        if (GraphicsEnvironment.isHeadless()) {
+            frame = null;
+            return;
+        }
+        frame = new JFrame();
         frame.setContentPane(draw);
         frame.addKeyListener(this);    // JLabel cannot get keyboard focus
         frame.setResizable(false);
@@ -314,6 +323,11 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
               for (DrawListener listener : listeners) {
                  listener.windowClosed();
               }
+              // dispatchers stop once they have delivered it
+              for (DrawListener listener : listeners) {
+                 if (listener instanceof CoalescingListener)
+                    ((CoalescingListener) listener).close();
+              }
            }
         });
         frame.requestFocusInWindow();
@@ -330,7 +344,7 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      */
     public void setLocationOnScreen(int x, int y) {
         if (x <= 0 || y <= 0) throw new IllegalArgumentException();
-        frame.setLocation(x, y);
+        if (frame != null) frame.setLocation(x, y);
     }
 
     /**
@@ -341,7 +355,7 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      *         (close current window)
      */
     public void setDefaultCloseOperation(int value) {
-        frame.setDefaultCloseOperation(value);
+        if (frame != null) frame.setDefaultCloseOperation(value);
     }
        
 
@@ -583,6 +597,14 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
         offscreen.setPaintMode();
     }
 
+    /**
+     * Releases the drawing window, if there is one, for a drawing that is
+     * no longer needed. It can't be shown again afterwards.
+     */
+    public void dispose() {
+        if (frame != null) frame.dispose();
+    }
+
     /**
      * Gets the current {@code JLabel} for use in some other GUI
      * and hides the current window. (Window hiding added by
@@ -591,7 +613,7 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      * @return the current {@code JLabel}
      */
     public JLabel getJLabel() {
-        frame.setVisible(false);
+        if (frame != null) frame.setVisible(false);
         return draw;
     }
 
@@ -1309,7 +1331,7 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      */
     public void show() {
         onscreen.drawImage(offscreenImage, 0, 0, null);
-        if (frame.isVisible()) {
+        if (frame != null && frame.isVisible()) {
            frame.repaint();
         } else if (draw != null) {
            draw.repaint(); // If embedded in another window
@@ -1415,6 +1437,45 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
         listeners.add(listener);
     }
 
+    /**
+     * Adds a {@link DrawListener}, optionally with drag coalescing.
+     * <p>
+     * A coalescing listener is called from its own dispatcher thread rather
+     * than the event dispatch thread, one callback at a time and in order.
+     * If it falls behind, drag events that pile up are merged and delivered
+     * in one call to {@link DrawListener#mouseDragged(double[], double[])},
+     * so a slow listener never backs up the AWT event queue.
+     *
+     * @param listener the {\tt DrawListener} argument
+     * @param coalesceDrags whether to dispatch through a coalescing dispatcher
+     */
+    public void addListener(DrawListener listener, boolean coalesceDrags) {
+        addListener(coalesceDrags ? new CoalescingListener(listener) : listener);
+    }
+
+    /**
+     * Removes a {@link DrawListener} added with either {@code addListener}
+     * method. A coalescing listener's dispatcher thread stops once it has
+     * delivered the callbacks already queued. Call it from the event
+     * dispatch thread.
+     *
+     * @param listener the {\tt DrawListener} argument
+     */
+    public void removeListener(DrawListener listener) {
+        for (int i = 0; i < listeners.size(); i++) {
+            DrawListener added = listeners.get(i);
+            if (added == listener) {
+                listeners.remove(i);
+                return;
+            }
+            if (added instanceof CoalescingListener && ((CoalescingListener) added).listener == listener) {
+                listeners.remove(i);
+                ((CoalescingListener) added).close();
+                return;
+            }
+        }
+    }
+
 
 
 
@@ -1492,14 +1553,16 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      */
     @Override
     public void mousePressed(MouseEvent e) {
+        double x = userX(e.getX());
+        double y = userY(e.getY());
         synchronized (mouseLock) {
-            mouseX = userX(e.getX());
-            mouseY = userY(e.getY());
+            mouseX = x;
+            mouseY = y;
             isMousePressed = true;
         }
         if (e.getButton() == MouseEvent.BUTTON1) {
             for (DrawListener listener : listeners)
-                listener.mousePressed(userX(e.getX()), userY(e.getY()));
+                listener.mousePressed(x, y);
         }
 
     }
@@ -1535,13 +1598,15 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      */
     @Override
     public void mouseDragged(MouseEvent e)  {
+        double x = userX(e.getX());
+        double y = userY(e.getY());
         synchronized (mouseLock) {
-            mouseX = userX(e.getX());
-            mouseY = userY(e.getY());
+            mouseX = x;
+            mouseY = y;
         }
         // doesn't seem to work if a button is specified
         for (DrawListener listener : listeners)
-            listener.mouseDragged(userX(e.getX()), userY(e.getY()));
+            listener.mouseDragged(x, y);
     }
 
     /**
@@ -1549,10 +1614,14 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
      */
     @Override
     public void mouseMoved(MouseEvent e) {
+        double x = userX(e.getX());
+        double y = userY(e.getY());
         synchronized (mouseLock) {
-            mouseX = userX(e.getX());
-            mouseY = userY(e.getY());
+            mouseX = x;
+            mouseY = y;
         }
+        for (DrawListener listener : listeners)
+            listener.mouseMoved(x, y);
     }
 
 
@@ -1642,6 +1711,147 @@ public final class Draw implements ActionListener, MouseListener, MouseMotionLis
             listener.keyReleased(e.getKeyCode());
     }
 
+   /***************************************************************************
+    *  Coalescing dispatch for slow listeners.
+    ***************************************************************************/
+
+    // Queues callbacks for one listener and runs them on a dispatcher thread.
+    // Consecutive drags still waiting in the queue are merged into one path.
+    // The queue is bounded: once a listener is that far behind, further
+    // callbacks are dropped, and a path that is too long has its last point
+    // moved rather than a new one added.
+    private static class CoalescingListener implements DrawListener {
+        private static final int MAX_PENDING = 256;      // queued callbacks before moves and drags are dropped
+        private static final int MAX_PATH_POINTS = 4096; // points in one drag path
+        private final DrawListener listener;
+        private final ArrayDeque<Object> pending = new ArrayDeque<Object>();  // Runnable, Move or DragPath
+        private Thread dispatcher;
+        private boolean isClosed = false;
+
+        // latest position of moves the listener hasn't been given yet
+        private static class Move {
+            double x, y;
+        }
+
+        // drag points collected while the listener was busy
+        private static class DragPath {
+            double[] x = new double[16];
+            double[] y = new double[16];
+            int n = 0;
+
+            void add(double px, double py) {
+                if (n == MAX_PATH_POINTS) {
+                    x[n-1] = px;
+                    y[n-1] = py;
+                    return;
+                }
+                if (n == x.length) {
+                    x = Arrays.copyOf(x, 2*n);
+                    y = Arrays.copyOf(y, 2*n);
+                }
+                x[n] = px;
+                y[n] = py;
+                n++;
+            }
+        }
+
+        CoalescingListener(DrawListener listener) {
+            this.listener = listener;
+        }
+
+        // presses, releases, clicks and keys are always queued: they come at
+        // the user's pace, and losing a release would join two strokes
+        private synchronized void enqueue(Object item) {
+            if (isClosed) return;
+            if (pending.size() >= MAX_PENDING && (item instanceof Move || item instanceof DragPath)) return;
+            pending.add(item);
+            if (dispatcher == null) {
+                dispatcher = new Thread(this::dispatch, "Draw-coalescing-dispatcher");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+            notifyAll();
+        }
+
+        // null once closed and everything queued has been delivered
+        private synchronized Object next() throws InterruptedException {
+            while (pending.isEmpty() && !isClosed) wait();
+            return pending.poll();
+        }
+
+        // stops the dispatcher after what is already queued
+        synchronized void close() {
+            isClosed = true;
+            notifyAll();
+        }
+
+        private void dispatch() {
+            try {
+                Object item;
+                while ((item = next()) != null) {
+                    if (item instanceof DragPath) {
+                        DragPath path = (DragPath) item;
+                        listener.mouseDragged(Arrays.copyOf(path.x, path.n),
+                                              Arrays.copyOf(path.y, path.n));
+                    }
+                    else if (item instanceof Move) {
+                        Move move = (Move) item;
+                        double x, y;
+                        synchronized (this) {
+                            x = move.x;
+                            y = move.y;
+                        }
+                        listener.mouseMoved(x, y);
+                    }
+                    else {
+                        ((Runnable) item).run();
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public synchronized void mouseDragged(double x, double y) {
+            // merge into the last queued drag if the dispatcher hasn't taken it yet
+            Object last = pending.peekLast();
+            if (last instanceof DragPath) {
+                ((DragPath) last).add(x, y);
+                return;
+            }
+            DragPath path = new DragPath();
+            path.add(x, y);
+            enqueue(path);
+        }
+
+        @Override
+        public synchronized void mouseMoved(double x, double y) {
+            // only the latest position matters
+            Object last = pending.peekLast();
+            Move move = (last instanceof Move) ? (Move) last : new Move();
+            move.x = x;
+            move.y = y;
+            if (move != last) enqueue(move);
+        }
+
+        @Override
+        public void mousePressed(double x, double y)  { enqueue((Runnable) () -> listener.mousePressed(x, y));  }
+        @Override
+        public void mouseReleased(double x, double y) { enqueue((Runnable) () -> listener.mouseReleased(x, y)); }
+        @Override
+        public void mouseClicked(double x, double y)  { enqueue((Runnable) () -> listener.mouseClicked(x, y));  }
+        @Override
+        public void keyTyped(char c)                  { enqueue((Runnable) () -> listener.keyTyped(c));          }
+        @Override
+        public void keyPressed(int keycode)           { enqueue((Runnable) () -> listener.keyPressed(keycode));  }
+        @Override
+        public void keyReleased(int keycode)          { enqueue((Runnable) () -> listener.keyReleased(keycode)); }
+        @Override
+        public void windowClosed()                    { enqueue((Runnable) listener::windowClosed);              }
+    }
+
    /***************************************************************************
     *  For improved resolution on Mac Retina displays.
     ***************************************************************************/
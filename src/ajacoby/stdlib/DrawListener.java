@@ -40,6 +40,29 @@ public interface DrawListener {
      */
     default void mouseDragged(double x, double y) {}
 
+    /**
+     * Invoked with several coalesced drag events at once. This only happens
+     * for listeners added with {@code addListener(listener, true)} that fall
+     * behind; the last point is the latest mouse position and the earlier
+     * ones are the path in between, oldest first. By default, calls
+     * {@link #mouseDragged(double, double)} for each point in order.
+     *
+     * @param x the x-coordinates of the mouse
+     * @param y the y-coordinates of the mouse
+     */
+    default void mouseDragged(double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++)
+            mouseDragged(x[i], y[i]);
+    }
+
+    /**
+     * Invoked when the mouse has been moved with no button down.
+     *
+     * @param x the x-coordinate of the mouse
+     * @param y the y-coordinate of the mouse
+     */
+    default void mouseMoved(double x, double y) {}
+
     /**
      * Invoked when the mouse has been released.
      *